@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2021 pc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.app;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.MessageFormat;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.ResourceBundle;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import labs.pm.data.SegmentWriter;
+
+/**
+ * {@code DataCompactor} converts a data folder with a product file and a
+ * reviews file per product into segment files, using a
+ * {@link SegmentWriter}. Lines are copied as they are, in product id order.
+ * <br>
+ * Arguments are the source folder, an optional target folder, which is the
+ * source folder by default, and an optional {@code delete} flag that removes
+ * the per product files once all segments are complete.
+ *
+ * @author pc
+ */
+public class DataCompactor {
+
+    private static final Logger logger
+            = Logger.getLogger(DataCompactor.class.getName());
+    private final ResourceBundle config
+            = ResourceBundle.getBundle("labs.pm.data.config");
+    private final MessageFormat productFormat
+            = new MessageFormat(config.getString("product.data.format"));
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: DataCompactor source [target] "
+                    + "[delete]");
+            return;
+        }
+        Path source = Path.of(args[0]);
+        Path target = source;
+        boolean delete = false;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("delete")) {
+                delete = true;
+            } else {
+                target = Path.of(args[i]);
+            }
+        }
+        long start = System.nanoTime();
+        List<Path> segments = new DataCompactor().compact(source, target,
+                delete);
+        System.out.printf("Wrote %d segments in %s%n", segments.size(),
+                LatencyRecorder.millis(System.nanoTime() - start));
+    }
+
+    /**
+     * Packs the products of a folder into new segments
+     *
+     * @param source folder with per product data files
+     * @param target folder to write segments to
+     * @param delete whether to remove the per product files afterwards
+     * @return the segment files written
+     * @throws IOException if a file cannot be read or written
+     */
+    public List<Path> compact(Path source, Path target, boolean delete)
+            throws IOException {
+        List<Path> productFiles;
+        try (Stream<Path> files = Files.list(source)) {
+            productFiles = files.filter(file -> file.getFileName().toString()
+                    .startsWith("product"))
+                    .collect(Collectors.toList());
+        }
+        NavigableMap<Integer, String> productLines = new TreeMap<>();
+        List<Path> converted = new ArrayList<>();
+        for (Path file : productFiles) {
+            String line = readFirstLine(file);
+            if (line == null) {
+                logger.log(Level.WARNING, "Skipping empty file " + file);
+                continue;
+            }
+            try {
+                productLines.put(Integer.parseInt(
+                        (String) productFormat.parse(line)[1]), line);
+                converted.add(file);
+            } catch (ParseException | NumberFormatException ex) {
+                logger.log(Level.WARNING, "Skipping product file " + file
+                        + " " + ex.getMessage());
+            }
+        }
+        List<Path> segments;
+        try (SegmentWriter writer = new SegmentWriter(target)) {
+            for (Map.Entry<Integer, String> entry : productLines.entrySet()) {
+                Path reviewsFile = reviewsFile(source, entry.getKey());
+                List<String> reviews = List.of();
+                if (Files.exists(reviewsFile)) {
+                    reviews = Files.readAllLines(reviewsFile,
+                            StandardCharsets.UTF_8);
+                    converted.add(reviewsFile);
+                }
+                writer.write(entry.getKey(), entry.getValue(), reviews);
+            }
+            segments = writer.getSegments();
+        }
+        if (delete) {
+            for (Path file : converted) {
+                Files.delete(file);
+            }
+        }
+        return segments;
+    }
+
+    private Path reviewsFile(Path folder, int id) {
+        return folder.resolve(MessageFormat.format(
+                config.getString("reviews.data.file"), id));
+    }
+
+    private static String readFirstLine(Path file) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(file,
+                StandardCharsets.UTF_8)) {
+            return in.readLine();
+        }
+    }
+}
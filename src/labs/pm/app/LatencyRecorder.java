@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2021 pc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.app;
+
+/**
+ * {@code LatencyRecorder} counts latency samples in nanoseconds in a fixed
+ * number of logarithmic buckets, so recording takes constant time and memory
+ * regardless of the number of samples.
+ * <br>
+ * Values below 128ns are counted exactly, larger values in buckets that are at
+ * most 1/64 of the value wide. A recorder is not thread safe, so each thread
+ * should use its own recorder and recorders should be merged afterwards.
+ *
+ * @author pc
+ */
+class LatencyRecorder {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int EXACT = SUB_BUCKETS * 2;
+    private final long[] counts
+            = new long[EXACT + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS];
+    private long count;
+    private long total;
+    private long max;
+
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[indexOf(value)]++;
+        count++;
+        total += value;
+        max = Math.max(max, value);
+    }
+
+    void merge(LatencyRecorder other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    double getMean() {
+        return (count == 0) ? 0 : (double) total / count;
+    }
+
+    /**
+     * Get the value at the given percentile, accurate to the width of the
+     * bucket that contains it
+     *
+     * @param percentile a value between 0 and 100
+     * @return the latency in nanoseconds or 0 if nothing was recorded
+     */
+    long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(valueOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int indexOf(long value) {
+        if (value < EXACT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int top = (int) (value >>> shift) - SUB_BUCKETS;
+        return EXACT + (shift - 1) * SUB_BUCKETS + top;
+    }
+
+    /*
+    Returns the middle of the range of values counted in the bucket
+     */
+    private static long valueOf(int index) {
+        if (index < EXACT) {
+            return index;
+        }
+        int shift = (index - EXACT) / SUB_BUCKETS + 1;
+        long top = (index - EXACT) % SUB_BUCKETS + SUB_BUCKETS;
+        return (top << shift) + (1L << (shift - 1));
+    }
+
+    /**
+     * Formats a latency in nanoseconds as milliseconds
+     *
+     * @param nanos latency in nanoseconds
+     * @return the latency in milliseconds with three decimals
+     */
+    static String millis(long nanos) {
+        return String.format("%.3fms", nanos / 1_000_000.0);
+    }
+}
@@ -16,15 +16,22 @@
  */
 package labs.pm.app;
 
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.file.Path;
 import java.time.LocalDate;
 import java.util.Comparator;
+import labs.pm.data.ExportFormat;
 import labs.pm.data.Product;
 import labs.pm.data.ProductManager;
 import labs.pm.data.Rating;
 
 /**
  * {@code Shop} class represents an application that manages Products
+ * <br>
+ * Run with {@code serve [port]} arguments to expose the products over HTTP
+ * with a {@link ShopServer}, or with {@code export file [csv|jsonl] [gzip]}
+ * arguments to export the catalogue
  *
  * @version 4.0
  * @author pc
@@ -33,6 +40,32 @@ public class Shop {
 
     public static void main(String[] args) {
         ProductManager pm = new ProductManager("en-GB");
+        if (args.length > 0 && args[0].equals("serve")) {
+            int port = (args.length > 1) ? Integer.parseInt(args[1]) : 8080;
+            try {
+                new ShopServer(pm, port).start();
+                /*
+                The server runs until the process is stopped, so the review
+                store is closed on the way out
+                 */
+                Runtime.getRuntime().addShutdownHook(new Thread(pm::close));
+                return;
+            } catch (IOException ex) {
+                System.err.println("Unable to start server " + ex.getMessage());
+            }
+        }
+        if (args.length > 1 && args[0].equals("export")) {
+            ExportFormat format = (args.length > 2)
+                    ? ExportFormat.valueOf(args[2].toUpperCase())
+                    : ExportFormat.CSV;
+            boolean gzip = args.length > 3 && args[3].equals("gzip");
+            try {
+                pm.exportData(Path.of(args[1]), format, gzip);
+            } catch (IOException ex) {
+                System.err.println("Unable to export data " + ex.getMessage());
+            }
+        }
+        pm.close();
     }
 
 }
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2021 pc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.app;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import labs.pm.data.ProductManager;
+import labs.pm.data.Rateable;
+
+/**
+ * {@code ShopLoadTest} starts a {@link ShopServer} on a local port and drives
+ * it with concurrent HTTP clients for a fixed time, then prints requests per
+ * second and latency percentiles per endpoint.
+ * <br>
+ * Arguments are the number of clients, the duration in seconds and the
+ * number of products to create, with defaults of 16 clients, 30 seconds and
+ * 1000 products.
+ *
+ * @author pc
+ */
+public class ShopLoadTest {
+
+    private enum Endpoint {
+        FIND, LIST, REVIEW, REPORT, DISCOUNTS
+    }
+
+    private static final String[] LANGUAGE_TAGS
+            = ProductManager.getSupportedLocales().toArray(new String[0]);
+
+    public static void main(String[] args) throws Exception {
+        int clients = (args.length > 0) ? Integer.parseInt(args[0]) : 16;
+        int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 30;
+        int productCount = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+        ProductManager pm = new ProductManager("en-GB");
+        for (int id = 1; id <= productCount; id++) {
+            if (id % 2 == 0) {
+                pm.createProduct(id, "Drink " + id, BigDecimal.valueOf(id % 50),
+                        Rateable.DEFAULT_RATING);
+            } else {
+                pm.createProduct(id, "Food " + id, BigDecimal.valueOf(id % 50),
+                        Rateable.DEFAULT_RATING, LocalDate.now());
+            }
+        }
+        ShopServer server = new ShopServer(pm, 0);
+        server.start();
+        try {
+            run("http://localhost:" + server.getPort(), clients, seconds,
+                    productCount);
+        } finally {
+            server.stop(0);
+            pm.close();
+        }
+    }
+
+    private static void run(String baseUrl, int clients, int seconds,
+            int productCount) throws InterruptedException {
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        AtomicLong errors = new AtomicLong();
+        List<Map<Endpoint, LatencyRecorder>> results = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Map<Endpoint, LatencyRecorder> recorders
+                    = new EnumMap<>(Endpoint.class);
+            for (Endpoint endpoint : Endpoint.values()) {
+                recorders.put(endpoint, new LatencyRecorder());
+            }
+            results.add(recorders);
+            Thread thread = new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    Endpoint endpoint = pickEndpoint();
+                    HttpRequest request
+                            = request(baseUrl, endpoint, productCount);
+                    long start = System.nanoTime();
+                    try {
+                        HttpResponse<String> response = client.send(request,
+                                HttpResponse.BodyHandlers.ofString());
+                        if (response.statusCode() != 200) {
+                            errors.incrementAndGet();
+                        }
+                    } catch (IOException ex) {
+                        errors.incrementAndGet();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    recorders.get(endpoint).record(System.nanoTime() - start);
+                }
+            }, "load-client-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        report(results, errors.get(), seconds);
+    }
+
+    /*
+    Mostly lookups, as a storefront would do, with some listings, reviews,
+    reports and discount queries
+     */
+    private static Endpoint pickEndpoint() {
+        int roll = ThreadLocalRandom.current().nextInt(100);
+        return (roll < 60) ? Endpoint.FIND
+                : (roll < 70) ? Endpoint.LIST
+                : (roll < 85) ? Endpoint.REVIEW
+                : (roll < 95) ? Endpoint.REPORT
+                : Endpoint.DISCOUNTS;
+    }
+
+    private static HttpRequest request(String baseUrl, Endpoint endpoint,
+            int productCount) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int id = random.nextInt(productCount) + 1;
+        String lang = "lang=" + LANGUAGE_TAGS[random.nextInt(
+                LANGUAGE_TAGS.length)];
+        switch (endpoint) {
+            case FIND:
+                return get(baseUrl + "/products/" + id + "?" + lang);
+            case LIST:
+                return get(baseUrl + "/products?minRating=4&sort=rating&"
+                        + lang);
+            case REVIEW:
+                return HttpRequest.newBuilder(
+                        URI.create(baseUrl + "/products/" + id + "/reviews"))
+                        .header("Content-Type",
+                                "application/x-www-form-urlencoded")
+                        .POST(HttpRequest.BodyPublishers.ofString("rating="
+                                + (random.nextInt(5) + 1)
+                                + "&comments=Load+test+review"))
+                        .build();
+            case REPORT:
+                return get(baseUrl + "/products/" + id + "/report?" + lang);
+            default:
+                return get(baseUrl + "/discounts?" + lang);
+        }
+    }
+
+    private static HttpRequest get(String url) {
+        return HttpRequest.newBuilder(URI.create(url)).GET().build();
+    }
+
+    private static void report(List<Map<Endpoint, LatencyRecorder>> results,
+            long errors, int seconds) {
+        LatencyRecorder all = new LatencyRecorder();
+        Map<Endpoint, LatencyRecorder> merged = new EnumMap<>(Endpoint.class);
+        for (Map<Endpoint, LatencyRecorder> recorders : results) {
+            recorders.forEach((endpoint, recorder) -> {
+                merged.computeIfAbsent(endpoint, e -> new LatencyRecorder())
+                        .merge(recorder);
+                all.merge(recorder);
+            });
+        }
+        System.out.printf("%d clients, %d seconds, %d requests, %d errors, "
+                + "%.1f requests/s%n", results.size(), seconds,
+                all.getCount(), errors, (double) all.getCount() / seconds);
+        System.out.printf("%-10s %10s %10s %12s %12s %12s%n", "endpoint",
+                "requests", "req/s", "p50", "p99", "max");
+        merged.forEach((endpoint, recorder) -> print(endpoint.name(),
+                recorder, seconds));
+        print("ALL", all, seconds);
+    }
+
+    private static void print(String name, LatencyRecorder recorder,
+            int seconds) {
+        System.out.printf("%-10s %10d %10.1f %12s %12s %12s%n", name,
+                recorder.getCount(), (double) recorder.getCount() / seconds,
+                LatencyRecorder.millis(recorder.getPercentile(50)),
+                LatencyRecorder.millis(recorder.getPercentile(99)),
+                LatencyRecorder.millis(recorder.getMax()));
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2021 pc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.app;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import labs.pm.data.Product;
+import labs.pm.data.ProductManager;
+import labs.pm.data.ProductManagerException;
+import labs.pm.data.Rateable;
+import labs.pm.data.Rating;
+
+/**
+ * {@code ShopServer} exposes a {@link ProductManager} over HTTP, using the
+ * HTTP server embedded in the JDK.
+ * <br>
+ * Requests are handled on virtual threads when the Java runtime provides
+ * them, and on a fixed thread pool otherwise. The locale of a response is
+ * taken from the {@code lang} request parameter or the
+ * {@code Accept-Language} header. All responses are plain UTF-8 text.
+ * <ul>
+ * <li>{@code GET /products?minRating=3&name=tea&sort=rating} lists products,
+ * optionally filtered by minimum rating and name, sorted by id, name, price
+ * or rating</li>
+ * <li>{@code GET /products/{id}} finds a product</li>
+ * <li>{@code GET /products/{id}/report} produces the product report</li>
+ * <li>{@code POST /products/{id}/reviews} with {@code rating} and
+ * {@code comments} form parameters reviews a product</li>
+ * <li>{@code GET /discounts} lists total discounts per rating</li>
+ * </ul>
+ *
+ * @author pc
+ */
+public class ShopServer {
+
+    private static final String DEFAULT_LANGUAGE_TAG = "en-GB";
+    private static final Logger logger
+            = Logger.getLogger(ShopServer.class.getName());
+    private final ProductManager pm;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    static {
+        /*
+        Responses are written as headers followed by the body, so without
+        TCP_NODELAY every response waits for the client to acknowledge the
+        headers, adding tens of milliseconds of latency
+         */
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    public ShopServer(ProductManager pm, int port) throws IOException {
+        this.pm = pm;
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        executor = newExecutor();
+        server.setExecutor(executor);
+        server.createContext("/products",
+                exchange -> handle(exchange, this::handleProducts));
+        server.createContext("/discounts",
+                exchange -> handle(exchange, this::handleDiscounts));
+    }
+
+    public void start() {
+        server.start();
+        logger.log(Level.INFO, "Shop server listening on port {0}",
+                String.valueOf(getPort()));
+    }
+
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(delaySeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /*
+    Virtual threads are only available from Java 21, while this project
+    targets an earlier release, so the virtual thread executor is looked up
+    at run time
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            logger.log(Level.INFO,
+                    "Virtual threads are not available, using a thread pool");
+            return Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors() * 4);
+        }
+    }
+
+    private String handleProducts(HttpExchange exchange,
+            Map<String, String> params, String languageTag)
+            throws ProductManagerException, IOException {
+        String[] path = exchange.getRequestURI().getPath()
+                .replaceFirst("^/products/?", "").split("/");
+        String method = exchange.getRequestMethod();
+        if (path[0].isEmpty()) {
+            requireMethod(method, "GET");
+            return listProducts(params, languageTag);
+        }
+        int id = Integer.parseInt(path[0]);
+        if (path.length == 1) {
+            requireMethod(method, "GET");
+            return pm.formatProduct(id, languageTag) + '\n';
+        }
+        if (path.length == 2 && path[1].equals("report")) {
+            requireMethod(method, "GET");
+            return pm.formatProductReport(id, languageTag);
+        }
+        if (path.length == 2 && path[1].equals("reviews")) {
+            requireMethod(method, "POST");
+            params.putAll(parseParameters(readBody(exchange)));
+            /*
+            Rateable.convert turns unknown ratings into NOT_RATED, which would
+            lower the average rating of the product
+             */
+            int stars = Integer.parseInt(required(params, "rating"));
+            if (stars < 0 || stars >= Rating.values().length) {
+                throw new HttpException(400, "Rating " + stars
+                        + " is not between 0 and "
+                        + (Rating.values().length - 1));
+            }
+            Rating rating = Rateable.convert(stars);
+            pm.reviewProduct(pm.findProduct(id), rating,
+                    params.getOrDefault("comments", ""));
+            return pm.formatProduct(id, languageTag) + '\n';
+        }
+        throw new HttpException(404, "Not found");
+    }
+
+    private String listProducts(Map<String, String> params,
+            String languageTag) {
+        Predicate<Product> filter = p -> true;
+        if (params.containsKey("minRating")) {
+            int minRating = Integer.parseInt(params.get("minRating"));
+            filter = filter.and(p -> p.getRating().ordinal() >= minRating);
+        }
+        if (params.containsKey("name")) {
+            String name = params.get("name").toLowerCase(Locale.ROOT);
+            filter = filter.and(p -> p.getName().toLowerCase(Locale.ROOT)
+                    .contains(name));
+        }
+        return pm.formatProducts(filter,
+                sorter(params.getOrDefault("sort", "id")), languageTag);
+    }
+
+    private static Comparator<Product> sorter(String sort) {
+        switch (sort) {
+            case "id":
+                return Comparator.comparingInt(Product::getId);
+            case "name":
+                return Comparator.comparing(Product::getName);
+            case "price":
+                return Comparator.comparing(Product::getPrice);
+            case "rating":
+                return Comparator.comparing(Product::getRating).reversed()
+                        .thenComparingInt(Product::getId);
+            default:
+                throw new IllegalArgumentException("Unknown sort " + sort);
+        }
+    }
+
+    private String handleDiscounts(HttpExchange exchange,
+            Map<String, String> params, String languageTag) {
+        requireMethod(exchange.getRequestMethod(), "GET");
+        return pm.getDiscounts(languageTag).entrySet()
+                .stream()
+                .sorted(Map.Entry.comparingByKey())
+                .map(e -> e.getKey() + '\t' + e.getValue() + '\n')
+                .collect(Collectors.joining());
+    }
+
+    private void handle(HttpExchange exchange, Handler handler)
+            throws IOException {
+        int status = 200;
+        String body;
+        try {
+            Map<String, String> params = parseParameters(
+                    exchange.getRequestURI().getRawQuery());
+            body = handler.handle(exchange, params,
+                    languageTag(exchange, params));
+        } catch (ProductManagerException ex) {
+            status = 404;
+            body = ex.getMessage() + '\n';
+        } catch (HttpException ex) {
+            status = ex.status;
+            body = ex.getMessage() + '\n';
+        } catch (IllegalArgumentException ex) {
+            status = 400;
+            body = "Bad request " + ex.getMessage() + '\n';
+        } catch (Exception ex) {
+            logger.log(Level.SEVERE, "Error handling request "
+                    + exchange.getRequestURI(), ex);
+            status = 500;
+            body = "Internal server error\n";
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type",
+                "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /*
+    Picks the locale from the lang parameter, or the best supported match for
+    the Accept-Language header. Ranges are tried from the highest weight and
+    a range such as ru matches any supported tag of that language, such as
+    ru-RU, preferring the default locale when several tags match.
+     */
+    private static String languageTag(HttpExchange exchange,
+            Map<String, String> params) {
+        String languageTag = params.get("lang");
+        if (languageTag == null) {
+            String header = exchange.getRequestHeaders()
+                    .getFirst("Accept-Language");
+            if (header != null) {
+                languageTag = matchLanguageTag(
+                        Locale.LanguageRange.parse(header));
+            }
+        }
+        return (languageTag == null) ? DEFAULT_LANGUAGE_TAG : languageTag;
+    }
+
+    private static String matchLanguageTag(
+            List<Locale.LanguageRange> ranges) {
+        for (Locale.LanguageRange range : ranges) {
+            List<String> matches = Locale.filterTags(List.of(range),
+                    ProductManager.getSupportedLocales());
+            if (!matches.isEmpty()) {
+                return matches.contains(DEFAULT_LANGUAGE_TAG)
+                        ? DEFAULT_LANGUAGE_TAG : matches.get(0);
+            }
+        }
+        return null;
+    }
+
+    private static Map<String, String> parseParameters(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int split = pair.indexOf('=');
+            String name = (split < 0) ? pair : pair.substring(0, split);
+            String value = (split < 0) ? "" : pair.substring(split + 1);
+            params.put(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                    URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String required(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing parameter " + name);
+        }
+        return value;
+    }
+
+    private static void requireMethod(String method, String expected) {
+        if (!method.equals(expected)) {
+            throw new HttpException(405, "Method " + method + " not allowed");
+        }
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+
+        String handle(HttpExchange exchange, Map<String, String> params,
+                String languageTag) throws Exception;
+    }
+
+    private static class HttpException extends RuntimeException {
+
+        private final int status;
+
+        private HttpException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2021 pc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.app;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+import labs.pm.data.Product;
+import labs.pm.data.ProductManager;
+import labs.pm.data.ProductManagerException;
+import labs.pm.data.Rateable;
+
+/**
+ * {@code SoakTest} drives a {@link ProductManager} with a mixed workload of
+ * lookups, reviews, listings, reports and discount queries from several
+ * threads for a fixed time, and reports throughput, latency percentiles and
+ * allocated bytes per operation type, together with GC time and allocation
+ * rate for the whole run.
+ * <br>
+ * Arguments are {@code name=value} pairs:
+ * <ul>
+ * <li>{@code data} the data folder, generated with
+ * {@link WorkloadGenerator} when it is missing or empty</li>
+ * <li>{@code products} and {@code reviews} the size of generated data,
+ * 10000 and 100000 by default</li>
+ * <li>{@code threads} and {@code seconds}, 8 and 60 by default</li>
+ * <li>{@code warmup} seconds to run before measuring, 10 by default</li>
+ * <li>{@code mix} weights per operation, by default
+ * {@code find:60,review:15,list:5,report:15,discounts:5}</li>
+ * </ul>
+ *
+ * @author pc
+ */
+public class SoakTest {
+
+    private enum Operation {
+        FIND, REVIEW, LIST, REPORT, DISCOUNTS
+    }
+
+    private static final String[] LANGUAGE_TAGS
+            = ProductManager.getSupportedLocales().toArray(new String[0]);
+    private static final Comparator<Product> BY_RATING
+            = Comparator.comparing(Product::getRating).reversed();
+    private final ProductManager pm;
+    private final int productCount;
+    private final int[] weights = new int[Operation.values().length];
+    private final com.sun.management.ThreadMXBean allocations;
+
+    private SoakTest(ProductManager pm, int productCount,
+            Map<Operation, Integer> mix) {
+        this.pm = pm;
+        this.productCount = productCount;
+        int total = 0;
+        for (Operation operation : Operation.values()) {
+            total += mix.getOrDefault(operation, 0);
+            weights[operation.ordinal()] = total;
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("Empty workload mix");
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        allocations = (threads instanceof com.sun.management.ThreadMXBean)
+                ? (com.sun.management.ThreadMXBean) threads : null;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            options.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+        Path data = Path.of(options.getOrDefault("data",
+                System.getProperty("java.io.tmpdir") + "/pm-soak"));
+        int products = Integer.parseInt(
+                options.getOrDefault("products", "10000"));
+        long reviews = Long.parseLong(options.getOrDefault("reviews", "100000"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "8"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "60"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "10"));
+        Map<Operation, Integer> mix = parseMix(options.getOrDefault("mix",
+                "find:60,review:15,list:5,report:15,discounts:5"));
+
+        if (isEmpty(data)) {
+            System.out.printf("Generating %d products and %d reviews in %s%n",
+                    products, reviews, data);
+            new WorkloadGenerator(42).generate(data, products, reviews);
+        }
+        long start = System.nanoTime();
+        ProductManager pm = new ProductManager("en-GB", data);
+        System.out.printf("Loaded data in %s%n",
+                LatencyRecorder.millis(System.nanoTime() - start));
+        /*
+        Operations pick ids from 1 to products, so a data folder that does not
+        hold them would only measure lookups of missing products
+         */
+        try {
+            pm.findProduct(1);
+            pm.findProduct(products);
+        } catch (ProductManagerException ex) {
+            System.err.printf("No products 1 to %d loaded from %s: %s%n",
+                    products, data, ex.getMessage());
+            System.exit(1);
+        }
+        SoakTest test = new SoakTest(pm, products, mix);
+        try {
+            if (warmup > 0) {
+                test.run(threads, warmup);
+            }
+            test.report(test.run(threads, seconds));
+        } finally {
+            pm.close();
+        }
+    }
+
+    private static Map<Operation, Integer> parseMix(String mix) {
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+        for (String entry : mix.split(",")) {
+            String[] pair = entry.split(":");
+            weights.put(Operation.valueOf(pair[0].trim().toUpperCase()),
+                    Integer.parseInt(pair[1].trim()));
+        }
+        return weights;
+    }
+
+    private static boolean isEmpty(Path folder) throws IOException {
+        if (Files.notExists(folder)) {
+            return true;
+        }
+        try (Stream<Path> files = Files.list(folder)) {
+            return files.findAny().isEmpty();
+        }
+    }
+
+    private Result run(int threadCount, int seconds)
+            throws InterruptedException {
+        long gcTime = gcTime();
+        long gcCount = gcCount();
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1_000_000_000L;
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            Worker worker = new Worker(deadline);
+            worker.setName("soak-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+        Result result = new Result();
+        for (Worker worker : workers) {
+            worker.join();
+            result.merge(worker);
+        }
+        result.nanos = System.nanoTime() - start;
+        result.gcTime = gcTime() - gcTime;
+        result.gcCount = gcCount() - gcCount;
+        return result;
+    }
+
+    private Operation pickOperation(ThreadLocalRandom random) {
+        int roll = random.nextInt(weights[weights.length - 1]);
+        for (Operation operation : Operation.values()) {
+            if (roll < weights[operation.ordinal()]) {
+                return operation;
+            }
+        }
+        throw new IllegalStateException("Roll " + roll + " out of range");
+    }
+
+    private void perform(Operation operation, ThreadLocalRandom random)
+            throws ProductManagerException {
+        int id = random.nextInt(productCount) + 1;
+        String languageTag = LANGUAGE_TAGS[random.nextInt(
+                LANGUAGE_TAGS.length)];
+        switch (operation) {
+            case FIND:
+                pm.formatProduct(id, languageTag);
+                break;
+            case REVIEW:
+                pm.reviewProduct(pm.findProduct(id),
+                        Rateable.convert(random.nextInt(1, 6)), "Soak test");
+                break;
+            case LIST:
+                pm.formatProducts(p -> p.getRating().ordinal() >= 4,
+                        BY_RATING, languageTag);
+                break;
+            case REPORT:
+                pm.formatProductReport(id, languageTag);
+                break;
+            case DISCOUNTS:
+                pm.getDiscounts(languageTag);
+                break;
+        }
+    }
+
+    private long allocatedBytes() {
+        return (allocations == null) ? 0
+                : allocations.getThreadAllocatedBytes(
+                        Thread.currentThread().getId());
+    }
+
+    private static long gcTime() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionTime)
+                .filter(time -> time > 0)
+                .sum();
+    }
+
+    private static long gcCount() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionCount)
+                .filter(count -> count > 0)
+                .sum();
+    }
+
+    private void report(Result result) {
+        double seconds = result.nanos / 1e9;
+        long operations = 0;
+        long allocated = 0;
+        for (Operation operation : Operation.values()) {
+            operations += result.latencies.get(operation).getCount();
+            allocated += result.allocated.get(operation);
+        }
+        System.out.printf("%d operations in %.1fs, %.1f ops/s, %d errors%n",
+                operations, seconds, operations / seconds, result.errors);
+        System.out.printf("GC: %d collections, %dms (%.2f%% of run time)%n",
+                result.gcCount, result.gcTime,
+                result.gcTime / 10.0 / seconds);
+        System.out.printf("Allocation: %.1f MB/s%s%n",
+                allocated / seconds / (1024 * 1024),
+                (allocations == null) ? " (not supported)" : "");
+        System.out.printf("%-10s %10s %10s %12s %12s %12s %12s %12s%n",
+                "operation", "count", "ops/s", "p50", "p99", "p999", "max",
+                "bytes/op");
+        for (Operation operation : Operation.values()) {
+            LatencyRecorder recorder = result.latencies.get(operation);
+            long count = recorder.getCount();
+            System.out.printf("%-10s %10d %10.1f %12s %12s %12s %12s %12d%n",
+                    operation, count, count / seconds,
+                    LatencyRecorder.millis(recorder.getPercentile(50)),
+                    LatencyRecorder.millis(recorder.getPercentile(99)),
+                    LatencyRecorder.millis(recorder.getPercentile(99.9)),
+                    LatencyRecorder.millis(recorder.getMax()),
+                    (count == 0) ? 0
+                            : result.allocated.get(operation) / count);
+        }
+    }
+
+    private class Worker extends Thread {
+
+        private final long deadline;
+        private final Map<Operation, LatencyRecorder> latencies
+                = new EnumMap<>(Operation.class);
+        private final long[] allocated = new long[Operation.values().length];
+        private long errors;
+
+        private Worker(long deadline) {
+            this.deadline = deadline;
+            for (Operation operation : Operation.values()) {
+                latencies.put(operation, new LatencyRecorder());
+            }
+        }
+
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (System.nanoTime() < deadline) {
+                Operation operation = pickOperation(random);
+                long bytes = allocatedBytes();
+                long start = System.nanoTime();
+                try {
+                    perform(operation, random);
+                } catch (ProductManagerException ex) {
+                    errors++;
+                }
+                latencies.get(operation).record(System.nanoTime() - start);
+                allocated[operation.ordinal()] += allocatedBytes() - bytes;
+            }
+        }
+    }
+
+    private static class Result {
+
+        private final Map<Operation, LatencyRecorder> latencies
+                = new EnumMap<>(Operation.class);
+        private final Map<Operation, Long> allocated
+                = new EnumMap<>(Operation.class);
+        private long errors;
+        private long nanos;
+        private long gcTime;
+        private long gcCount;
+
+        private Result() {
+            for (Operation operation : Operation.values()) {
+                latencies.put(operation, new LatencyRecorder());
+                allocated.put(operation, 0L);
+            }
+        }
+
+        private void merge(Worker worker) {
+            worker.latencies.forEach((operation, recorder)
+                    -> latencies.get(operation).merge(recorder));
+            for (Operation operation : Operation.values()) {
+                allocated.merge(operation,
+                        worker.allocated[operation.ordinal()], Long::sum);
+            }
+            errors += worker.errors;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2021 pc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.app;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.MessageFormat;
+import java.time.LocalDate;
+import java.util.Locale;
+import java.util.ResourceBundle;
+import java.util.SplittableRandom;
+
+/**
+ * {@code WorkloadGenerator} writes synthetic product and review data files in
+ * the layout read by {@link labs.pm.data.ProductManager ProductManager}, using
+ * the {@code product.data.format}, {@code review.data.format},
+ * {@code product.data.file} and {@code reviews.data.file} configuration.
+ * <br>
+ * Arguments are the data folder, the number of products, the number of
+ * reviews and an optional random seed.
+ *
+ * @author pc
+ */
+public class WorkloadGenerator {
+
+    private static final String[] NAMES = {"Tea", "Coffee", "Cake", "Cookie",
+        "Juice", "Soup", "Bread", "Pie", "Water", "Chocolate"};
+    private static final String[] COMMENTS = {"Rather weak", "Fine",
+        "Good value", "Perfect", "Just add some lemon", "Too sweet", "Stale",
+        "Served cold", "Very nice", "Would buy again"};
+    private final ResourceBundle config
+            = ResourceBundle.getBundle("labs.pm.data.config");
+    private final MessageFormat productFormat
+            = new MessageFormat(config.getString("product.data.format"));
+    private final MessageFormat reviewFormat
+            = new MessageFormat(config.getString("review.data.format"));
+    private final SplittableRandom random;
+
+    public WorkloadGenerator(long seed) {
+        random = new SplittableRandom(seed);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: WorkloadGenerator folder products "
+                    + "reviews [seed]");
+            return;
+        }
+        long seed = (args.length > 3) ? Long.parseLong(args[3]) : 42;
+        new WorkloadGenerator(seed).generate(Path.of(args[0]),
+                Integer.parseInt(args[1]), Long.parseLong(args[2]));
+    }
+
+    /**
+     * Writes product data files with ids from 1 to {@code products} and
+     * spreads {@code reviews} reviews randomly over these products
+     *
+     * @param folder the data folder, created if it does not exist
+     * @param products the number of products
+     * @param reviews the total number of reviews
+     * @throws IOException if a data file cannot be written
+     */
+    public void generate(Path folder, int products, long reviews)
+            throws IOException {
+        Files.createDirectories(folder);
+        int[] reviewCounts = new int[products];
+        for (long i = 0; i < reviews; i++) {
+            reviewCounts[random.nextInt(products)]++;
+        }
+        /*
+        File names are formatted from the product id in the same way as
+        ProductManager resolves them when it loads reviews
+         */
+        for (int i = 0; i < products; i++) {
+            int id = i + 1;
+            writeProduct(folder.resolve(MessageFormat.format(
+                    config.getString("product.data.file"), id)), id);
+            if (reviewCounts[i] > 0) {
+                writeReviews(folder.resolve(MessageFormat.format(
+                        config.getString("reviews.data.file"), id)),
+                        reviewCounts[i]);
+            }
+        }
+    }
+
+    private void writeProduct(Path file, int id) throws IOException {
+        String type = random.nextBoolean() ? "D" : "F";
+        String line = productFormat.format(new Object[]{type,
+            String.valueOf(id),
+            NAMES[random.nextInt(NAMES.length)] + " " + id,
+            String.format(Locale.ROOT, "%.2f",
+                    0.5 + random.nextInt(2000) / 100.0),
+            String.valueOf(random.nextInt(6)),
+            LocalDate.now().plusDays(random.nextInt(3)).toString()});
+        Files.writeString(file, line + System.lineSeparator(),
+                StandardCharsets.UTF_8);
+    }
+
+    private void writeReviews(Path file, int count) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file,
+                StandardCharsets.UTF_8)) {
+            for (int i = 0; i < count; i++) {
+                out.write(reviewFormat.format(new Object[]{
+                    String.valueOf(random.nextInt(1, 6)),
+                    COMMENTS[random.nextInt(COMMENTS.length)]}));
+                out.newLine();
+            }
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2021 pc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * {@code DataExporter} streams products and their reviews to a file in one of
+ * the {@link ExportFormat export formats}, optionally gzip compressed.
+ * <br>
+ * Fields are copied straight into a character array, encoded to UTF-8 into
+ * one large heap byte buffer that is reused for the whole export, and written
+ * to a {@link FileChannel} whenever that buffer fills up. Memory use therefore
+ * does not depend on the size of the catalogue, or on the number of reviews
+ * of a single product.
+ *
+ * @author pc
+ */
+class DataExporter implements Closeable {
+
+    static final int BUFFER_SIZE = 1 << 20;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final String[] RATINGS = new String[Rating.values().length];
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    static {
+        for (int i = 0; i < RATINGS.length; i++) {
+            RATINGS[i] = String.valueOf(i);
+        }
+    }
+
+    private final ExportFormat format;
+    private final Layout productLayout;
+    private final Layout reviewLayout;
+    private final String[] productFields = new String[7];
+    private final String[] reviewFields = new String[2];
+    private final FileChannel channel;
+    private final OutputStream gzip;
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private char[] chars = new char[2 * CHUNK_SIZE];
+    private int length;
+
+    /**
+     * Creates the export file, replacing an existing file
+     *
+     * @param file the export file
+     * @param format the export format
+     * @param gzip whether to compress the file with gzip
+     * @param productFormat product line layout for CSV exports
+     * @param reviewFormat review line layout for CSV exports
+     * @throws IOException if the file cannot be created
+     */
+    DataExporter(Path file, ExportFormat format, boolean gzip,
+            MessageFormat productFormat, MessageFormat reviewFormat)
+            throws IOException {
+        this.format = format;
+        productLayout = new Layout(productFormat, productFields.length);
+        reviewLayout = new Layout(reviewFormat, reviewFields.length);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        /*
+        Characters are encoded from an array into an array, which is the fast
+        path of the encoder, and the deflater also takes the bytes from the
+        array
+         */
+        this.gzip = gzip
+                ? new GZIPOutputStream(Channels.newOutputStream(channel),
+                        64 * 1024)
+                : null;
+    }
+
+    /**
+     * Writes a product followed by its reviews
+     *
+     * @param product the product, with its current rating
+     * @param reviews the reviews of the product
+     * @throws IOException if the file cannot be written
+     */
+    void write(Product product, Collection<Review> reviews)
+            throws IOException {
+        switch (format) {
+            case CSV:
+                writeCsv(product, reviews);
+                break;
+            case JSONL:
+                writeJson(product, reviews);
+                break;
+        }
+    }
+
+    private void writeCsv(Product product, Collection<Review> reviews)
+            throws IOException {
+        productFields[0] = type(product);
+        productFields[1] = String.valueOf(product.getId());
+        productFields[2] = product.getName();
+        productFields[3] = product.getPrice().toPlainString();
+        productFields[4] = RATINGS[product.getRating().ordinal()];
+        productFields[5] = product.getBestBefore().toString();
+        productFields[6] = product.getDiscount().toPlainString();
+        productLayout.append(this, productFields);
+        append(LINE_SEPARATOR);
+        for (Review review : reviews) {
+            reviewFields[0] = RATINGS[review.getRating().ordinal()];
+            reviewFields[1] = review.getComments();
+            reviewLayout.append(this, reviewFields);
+            append(LINE_SEPARATOR);
+            encodeChunk();
+        }
+        encodeChunk();
+    }
+
+    private void writeJson(Product product, Collection<Review> reviews)
+            throws IOException {
+        append("{\"id\":");
+        append(String.valueOf(product.getId()));
+        append(",\"type\":\"");
+        append(type(product));
+        append("\",\"name\":");
+        appendJsonString(product.getName());
+        append(",\"price\":");
+        append(product.getPrice().toPlainString());
+        append(",\"discount\":");
+        append(product.getDiscount().toPlainString());
+        append(",\"rating\":");
+        append(RATINGS[product.getRating().ordinal()]);
+        append(",\"bestBefore\":\"");
+        append(product.getBestBefore().toString());
+        append("\",\"reviews\":[");
+        boolean first = true;
+        for (Review review : reviews) {
+            append(first ? "{\"rating\":" : ",{\"rating\":");
+            append(RATINGS[review.getRating().ordinal()]);
+            append(",\"comments\":");
+            appendJsonString(review.getComments());
+            append('}');
+            first = false;
+            encodeChunk();
+        }
+        append("]}\n");
+        encodeChunk();
+    }
+
+    private static String type(Product product) {
+        return (product instanceof Drink) ? "D" : "F";
+    }
+
+    /*
+    Runs of characters that need no escaping, usually the whole text, are
+    copied at once
+     */
+    private void appendJsonString(String text) {
+        append('"');
+        if (text != null) {
+            int start = 0;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c < 0x20 || c == '"' || c == '\\') {
+                    append(text, start, i);
+                    appendEscape(c);
+                    start = i + 1;
+                }
+            }
+            append(text, start, text.length());
+        }
+        append('"');
+    }
+
+    private void appendEscape(char c) {
+        switch (c) {
+            case '"':
+                append("\\\"");
+                break;
+            case '\\':
+                append("\\\\");
+                break;
+            case '\n':
+                append("\\n");
+                break;
+            case '\r':
+                append("\\r");
+                break;
+            case '\t':
+                append("\\t");
+                break;
+            default:
+                append("\\u00");
+                append(HEX_DIGITS[c >> 4]);
+                append(HEX_DIGITS[c & 0xf]);
+        }
+    }
+
+    private void append(String text) {
+        append(text, 0, text.length());
+    }
+
+    private void append(String text, int start, int end) {
+        ensureCapacity(end - start);
+        text.getChars(start, end, chars, length);
+        length += end - start;
+    }
+
+    private void append(char c) {
+        ensureCapacity(1);
+        chars[length++] = c;
+    }
+
+    private void ensureCapacity(int count) {
+        if (length + count > chars.length) {
+            chars = Arrays.copyOf(chars,
+                    Math.max(chars.length * 2, length + count));
+        }
+    }
+
+    private void encodeChunk() throws IOException {
+        if (length >= CHUNK_SIZE) {
+            encode(false);
+        }
+    }
+
+    /*
+    Encodes the pending characters into the byte buffer, writing the buffer
+    out each time it is full. A surrogate pair split at the end of the
+    pending characters stays pending until the rest of it arrives.
+     */
+    private void encode(boolean endOfInput) throws IOException {
+        CharBuffer in = CharBuffer.wrap(chars, 0, length);
+        CoderResult result;
+        do {
+            result = encoder.encode(in, bytes, endOfInput);
+            if (result.isOverflow()) {
+                drain();
+            } else if (result.isError()) {
+                result.throwException();
+            }
+        } while (result.isOverflow());
+        length = in.remaining();
+        System.arraycopy(chars, in.position(), chars, 0, length);
+    }
+
+    private void drain() throws IOException {
+        if (gzip != null) {
+            gzip.write(bytes.array(), 0, bytes.position());
+            bytes.clear();
+        } else {
+            bytes.flip();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            bytes.clear();
+        }
+    }
+
+    /**
+     * Writes out pending data, finishes the gzip stream and closes the file
+     *
+     * @throws IOException if the file cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        try (channel) {
+            encode(true);
+            while (encoder.flush(bytes).isOverflow()) {
+                drain();
+            }
+            drain();
+            if (gzip != null) {
+                gzip.close();
+            }
+        }
+    }
+
+    /**
+     * {@code Layout} is a CSV line layout, split once into literal text and
+     * the numbers of the fields in between, so that lines are assembled
+     * without formatting every row. The layout is found by formatting the
+     * pattern with markers in place of the fields, which also resolves the
+     * quoting rules of {@link MessageFormat}.
+     */
+    private static class Layout {
+
+        private static final char MARKER = '\uffff';
+        private final String[] literals;
+        private final int[] fields;
+
+        private Layout(MessageFormat format, int fieldCount) {
+            Object[] markers = new Object[fieldCount];
+            for (int i = 0; i < fieldCount; i++) {
+                markers[i] = MARKER + String.valueOf(i) + MARKER;
+            }
+            String text = format.format(markers);
+            String[] parts = text.split(String.valueOf(MARKER), -1);
+            literals = new String[parts.length / 2 + 1];
+            fields = new int[parts.length / 2];
+            for (int i = 0; i < parts.length; i++) {
+                if (i % 2 == 0) {
+                    literals[i / 2] = parts[i];
+                } else {
+                    fields[i / 2] = Integer.parseInt(parts[i]);
+                }
+            }
+        }
+
+        private void append(DataExporter exporter, String[] values) {
+            for (int i = 0; i < fields.length; i++) {
+                exporter.append(literals[i]);
+                exporter.append(String.valueOf(values[fields[i]]));
+            }
+            exporter.append(literals[fields.length]);
+        }
+    }
+}
@@ -0,0 +1,585 @@
+/*
+ * Copyright (C) 2021 pc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * {@code DataImage} is a binary image of loaded products and reviews, kept so
+ * that data files which did not change do not have to be parsed again.
+ * <br>
+ * Products are grouped in units, a unit being a segment or a product file
+ * with its reviews file. The image holds the products of each unit with
+ * their reviews and the terms of their review comments, and a manifest of
+ * the size and modification time of every file the unit was read from. A
+ * unit is only taken from the image while all of its files are unchanged.
+ * The comment terms let the search index be filled without splitting every
+ * comment again. Each block starts with a dictionary of the comments and
+ * terms used in the unit, so reviews and products refer to them by number,
+ * and a comment that occurs in many reviews is read into a single string.
+ * <br>
+ * The file starts with a magic number and a version, followed by one block
+ * per unit and by a directory of units, and ends with the offset of the
+ * directory. Blocks are read from the file channel into a heap buffer that
+ * is refilled as the block is decoded. The file is not memory mapped, as a
+ * mapped file can not be replaced on Windows until the mapping is garbage
+ * collected, and the image is replaced whenever data files change.
+ *
+ * @author pc
+ */
+class DataImage implements Closeable {
+
+    private static final int MAGIC = 0x504d494d;
+    private static final int VERSION = 2;
+    private static final int BUFFER_SIZE = 1 << 20;
+    private final FileChannel channel;
+    private final long size;
+    private final Map<String, Unit> units = new HashMap<>();
+    private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+    private long inPosition;
+    private long inEnd;
+    private byte[] text = new byte[256];
+
+    private DataImage(FileChannel channel) throws IOException {
+        this.channel = channel;
+        size = channel.size();
+    }
+
+    /**
+     * Opens an image and reads its directory
+     *
+     * @param file the image file
+     * @param source describes the data folder and formats the image was made
+     * from, an image made from another source is rejected
+     * @return the image
+     * @throws IOException if the file cannot be read, is not an image or was
+     * made from another source
+     */
+    static DataImage open(Path file, String source) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            DataImage image = new DataImage(channel);
+            image.readDirectory(source);
+            return image;
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw (ex instanceof IOException) ? (IOException) ex
+                    : new IOException("Corrupt data image " + file, ex);
+        }
+    }
+
+    private void readDirectory(String source) throws IOException {
+        if (size < 16) {
+            throw new IOException("Not a data image");
+        }
+        seek(0, 8);
+        if (fill(4).getInt() != MAGIC || fill(4).getInt() != VERSION) {
+            throw new IOException("Not a data image");
+        }
+        seek(size - 8, 8);
+        long directory = fill(8).getLong();
+        if (directory < 8 || directory > size - 8) {
+            throw new IOException("Corrupt data image");
+        }
+        seek(directory, size - 8 - directory);
+        if (!source.equals(getString())) {
+            throw new IOException("Data image of another data folder");
+        }
+        int count = fill(4).getInt();
+        for (int i = 0; i < count; i++) {
+            Unit unit = new Unit(getString());
+            unit.offset = fill(8).getLong();
+            unit.length = fill(4).getInt();
+            int files = fill(4).getInt();
+            for (int j = 0; j < files; j++) {
+                String name = getString();
+                long fileSize = fill(8).getLong();
+                long modified = fill(8).getLong();
+                unit.addFile(name, (fileSize < 0) ? null
+                        : new Stamp(fileSize, modified));
+            }
+            int skipped = fill(4).getInt();
+            for (int j = 0; j < skipped; j++) {
+                unit.addSkipped(fill(4).getInt());
+            }
+            if (unit.offset < 8 || unit.offset + unit.length > directory) {
+                throw new IOException("Corrupt data image");
+            }
+            units.put(unit.name, unit);
+        }
+    }
+
+    int getUnitCount() {
+        return units.size();
+    }
+
+    /**
+     * Finds a unit whose files are all unchanged
+     *
+     * @param name unit name
+     * @param stamps current size and modification time of the data files,
+     * by file name
+     * @return the unit, or null if it is not in the image or its files
+     * changed
+     */
+    Unit getUnit(String name, Map<String, Stamp> stamps) {
+        Unit unit = units.get(name);
+        if (unit == null) {
+            return null;
+        }
+        for (Map.Entry<String, Stamp> file : unit.files.entrySet()) {
+            if (!Objects.equals(file.getValue(), stamps.get(file.getKey()))) {
+                return null;
+            }
+        }
+        return unit;
+    }
+
+    /**
+     * Reads the products of a unit and hands them to a loader. The block of
+     * the unit is decoded completely before the first product is handed to
+     * the loader, so a block that can not be read leaves nothing loaded.
+     *
+     * @param unit a unit of this image
+     * @param target the unit being loaded, which takes the files and skipped
+     * products of the image unit
+     * @param loader decides what to do with each product
+     * @throws IOException if the image cannot be read
+     */
+    void read(Unit unit, Unit target, Loader loader) throws IOException {
+        target.files.putAll(unit.files);
+        target.skipped.addAll(unit.skipped);
+        target.fromImage = true;
+        seek(unit.offset, unit.length);
+        String[] dictionary = new String[fill(4).getInt()];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = getString();
+        }
+        Entry[] entries = new Entry[fill(4).getInt()];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = readEntry(dictionary);
+        }
+        for (Entry entry : entries) {
+            RatedReviews reviews = loader.load(entry.product, entry.terms,
+                    entry.counts);
+            if (reviews != null) {
+                for (Review review : entry.reviews) {
+                    reviews.add(review);
+                }
+            }
+        }
+    }
+
+    /*
+    Products are decoded by small methods, which the JIT compiler handles
+    early, as a unit may hold every product of a segment
+     */
+    private Entry readEntry(String[] dictionary) throws IOException {
+        Entry entry = new Entry();
+        entry.product = readProduct();
+        entry.reviews = new Review[fill(4).getInt()];
+        for (int i = 0; i < entry.reviews.length; i++) {
+            entry.reviews[i] = readReview(dictionary);
+        }
+        entry.terms = new String[fill(4).getInt()];
+        entry.counts = new int[entry.terms.length];
+        for (int i = 0; i < entry.terms.length; i++) {
+            entry.terms[i] = dictionary[fill(4).getInt()];
+            entry.counts[i] = fill(4).getInt();
+        }
+        return entry;
+    }
+
+    private Product readProduct() throws IOException {
+        byte type = fill(1).get();
+        int id = fill(4).getInt();
+        String name = getString();
+        BigDecimal price = new BigDecimal(getString());
+        Rating rating = Rateable.convert(fill(1).get());
+        return (type == 'D')
+                ? new Drink(id, name, price, rating)
+                : new Food(id, name, price, rating,
+                        LocalDate.ofEpochDay(fill(8).getLong()));
+    }
+
+    private Review readReview(String[] dictionary) throws IOException {
+        Rating rating = Rateable.convert(fill(1).get());
+        return new Review(rating, dictionary[fill(4).getInt()]);
+    }
+
+    /*
+    Starts reading a range of the file, which is read into the buffer as it
+    is decoded
+     */
+    private void seek(long offset, long length) {
+        in.clear().limit(0);
+        inPosition = offset;
+        inEnd = offset + length;
+    }
+
+    /*
+    Makes sure that the buffer holds at least the given number of bytes of
+    the range being read, growing the buffer for long strings
+     */
+    private ByteBuffer fill(int count) throws IOException {
+        if (in.remaining() >= count) {
+            return in;
+        }
+        if (count < 0 || count > in.remaining() + inEnd - inPosition) {
+            throw new IOException("Corrupt data image");
+        }
+        if (count > in.capacity()) {
+            in = ByteBuffer.allocate(Math.max(count, in.capacity() * 2))
+                    .put(in);
+        } else {
+            in.compact();
+        }
+        in.limit((int) Math.min(in.capacity(),
+                in.position() + inEnd - inPosition));
+        while (in.hasRemaining()) {
+            int read = channel.read(in, inPosition);
+            if (read < 0) {
+                throw new EOFException("Data image is truncated");
+            }
+            inPosition += read;
+        }
+        return in.flip();
+    }
+
+    private String getString() throws IOException {
+        int length = fill(4).getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > text.length) {
+            text = new byte[Math.max(length, text.length * 2)];
+        }
+        fill(length).get(text, 0, length);
+        return new String(text, 0, length, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Writes a new image, replacing the image file once it is complete.
+     * Units that are not cacheable are left out.
+     *
+     * @param file the image file
+     * @param source describes the data folder and formats
+     * @param units the units to write
+     * @param reviews finds the reviews of a product
+     * @param terms finds the comment terms of a product, with the number of
+     * reviews that contain each term
+     * @throws IOException if the image cannot be written
+     */
+    static void write(Path file, String source, Collection<Unit> units,
+            Function<Product, ? extends Collection<Review>> reviews,
+            Function<Product, Map<String, Integer>> terms)
+            throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        List<Unit> written = new ArrayList<>();
+        try (CountingOutputStream counter = new CountingOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp), 1 << 20));
+                DataOutputStream out = new DataOutputStream(counter)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Unit unit : units) {
+                if (!unit.cacheable) {
+                    continue;
+                }
+                unit.offset = counter.count;
+                writeBlock(out, unit, reviews, terms);
+                if (counter.count - unit.offset > Integer.MAX_VALUE) {
+                    throw new IOException("Unit " + unit.name
+                            + " is too large for a data image");
+                }
+                unit.length = (int) (counter.count - unit.offset);
+                written.add(unit);
+            }
+            long directory = counter.count;
+            putString(out, source);
+            out.writeInt(written.size());
+            for (Unit unit : written) {
+                putString(out, unit.name);
+                out.writeLong(unit.offset);
+                out.writeInt(unit.length);
+                out.writeInt(unit.files.size());
+                for (Map.Entry<String, Stamp> entry : unit.files.entrySet()) {
+                    Stamp stamp = entry.getValue();
+                    putString(out, entry.getKey());
+                    out.writeLong((stamp == null) ? -1 : stamp.size);
+                    out.writeLong((stamp == null) ? 0 : stamp.modified);
+                }
+                out.writeInt(unit.skipped.size());
+                for (int id : unit.skipped) {
+                    out.writeInt(id);
+                }
+            }
+            out.writeLong(directory);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeBlock(DataOutputStream out, Unit unit,
+            Function<Product, ? extends Collection<Review>> reviews,
+            Function<Product, Map<String, Integer>> terms)
+            throws IOException {
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        for (Product product : unit.products) {
+            for (Review review : reviews.apply(product)) {
+                dictionary.putIfAbsent(review.getComments(),
+                        dictionary.size());
+            }
+            for (String term : terms.apply(product).keySet()) {
+                dictionary.putIfAbsent(term, dictionary.size());
+            }
+        }
+        out.writeInt(dictionary.size());
+        for (String term : dictionary.keySet()) {
+            putString(out, term);
+        }
+        out.writeInt(unit.products.size());
+        for (Product product : unit.products) {
+            boolean drink = product instanceof Drink;
+            out.writeByte(drink ? 'D' : 'F');
+            out.writeInt(product.getId());
+            putString(out, product.getName());
+            putString(out, product.getPrice().toString());
+            out.writeByte(product.getRating().ordinal());
+            if (!drink) {
+                out.writeLong(product.getBestBefore().toEpochDay());
+            }
+            Collection<Review> productReviews = reviews.apply(product);
+            out.writeInt(productReviews.size());
+            for (Review review : productReviews) {
+                out.writeByte(review.getRating().ordinal());
+                out.writeInt(dictionary.get(review.getComments()));
+            }
+            Map<String, Integer> productTerms = terms.apply(product);
+            out.writeInt(productTerms.size());
+            for (Map.Entry<String, Integer> term : productTerms.entrySet()) {
+                out.writeInt(dictionary.get(term.getKey()));
+                out.writeInt(term.getValue());
+            }
+        }
+    }
+
+    private static void putString(DataOutputStream out, String value)
+            throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * {@code Loader} receives the products read from an image
+     */
+    @FunctionalInterface
+    interface Loader {
+
+        /**
+         * Accepts a product
+         *
+         * @param product the product
+         * @param terms distinct terms of the product review comments
+         * @param counts the number of reviews that contain each term
+         * @return the reviews to add the product reviews to, or null to skip
+         * them
+         */
+        RatedReviews load(Product product, String[] terms, int[] counts);
+    }
+
+    /**
+     * {@code Stamp} is the size and modification time of a data file
+     */
+    static final class Stamp {
+
+        private final long size;
+        private final long modified;
+
+        private Stamp(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+
+        static Stamp of(BasicFileAttributes attributes) {
+            return new Stamp(attributes.size(),
+                    attributes.lastModifiedTime().toMillis());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj instanceof Stamp) {
+                Stamp other = (Stamp) obj;
+                return size == other.size && modified == other.modified;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(size) * 31 + Long.hashCode(modified);
+        }
+    }
+
+    /**
+     * {@code Unit} is a group of products loaded together, from a segment
+     * or from a product file and its reviews file
+     */
+    static final class Unit {
+
+        private final String name;
+        private final Map<String, Stamp> files = new LinkedHashMap<>();
+        private final List<Product> products = new ArrayList<>();
+        private final List<Integer> skipped = new ArrayList<>();
+        private boolean cacheable = true;
+        private boolean fromImage;
+        private long offset;
+        private int length;
+
+        Unit(String name) {
+            this.name = name;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /**
+         * Records a file the unit was read from
+         *
+         * @param fileName file name in the data folder
+         * @param stamp its size and modification time, or null if the file
+         * does not exist
+         */
+        void addFile(String fileName, Stamp stamp) {
+            files.put(fileName, stamp);
+        }
+
+        Map<String, Stamp> getFiles() {
+            return Collections.unmodifiableMap(files);
+        }
+
+        void addProduct(Product product) {
+            products.add(product);
+        }
+
+        List<Product> getProducts() {
+            return Collections.unmodifiableList(products);
+        }
+
+        /**
+         * Records the id of a product of this unit that was not loaded,
+         * because a unit read before it already provided that product
+         *
+         * @param id product id
+         */
+        void addSkipped(int id) {
+            skipped.add(id);
+        }
+
+        List<Integer> getSkipped() {
+            return Collections.unmodifiableList(skipped);
+        }
+
+        /*
+        Units with rejected rows or read errors are parsed again on every
+        load, so their problems keep being reported
+         */
+        void setCacheable(boolean cacheable) {
+            this.cacheable = cacheable;
+        }
+
+        boolean isCacheable() {
+            return cacheable;
+        }
+
+        boolean isFromImage() {
+            return fromImage;
+        }
+    }
+
+    /**
+     * {@code Entry} is a product decoded from a block, kept until the whole
+     * block is decoded
+     */
+    private static class Entry {
+
+        private Product product;
+        private Review[] reviews;
+        private String[] terms;
+        private int[] counts;
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
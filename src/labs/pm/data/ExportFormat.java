@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2021 pc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+/**
+ * {@code ExportFormat} lists the file formats that
+ * {@link ProductManager#exportData ProductManager.exportData} can write
+ *
+ * @author pc
+ */
+public enum ExportFormat {
+    /**
+     * A product line in the {@code export.product.format} layout, which is
+     * the product data layout followed by the discount, and then a line in
+     * the {@code review.data.format} layout for each review of the product
+     */
+    CSV,
+    /**
+     * One JSON object per line and product, with the reviews of the product
+     * in a {@code reviews} array
+     */
+    JSONL
+}
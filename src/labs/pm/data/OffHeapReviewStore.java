@@ -0,0 +1,592 @@
+/*
+ * Copyright (C) 2021 pc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractSequentialList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * {@code OffHeapReviewStore} keeps review ratings and UTF-8 comments outside
+ * the Java heap, either in direct memory or in a memory mapped file.
+ * <br>
+ * Memory is reserved in large arenas. Reviews of a product with a given
+ * rating are appended to a chain of segments carved out of these arenas,
+ * with each segment twice the size of the previous one, so the heap only
+ * holds the segment addresses. Reviews are read through flyweight
+ * {@link Review} views that decode the record when they are accessed.
+ * <br>
+ * A file backed store keeps its allocation state in the file, so it can be
+ * reopened after a restart instead of parsing review data files again. The
+ * file also records a digest of the data the reviews were loaded from and
+ * whether loading completed, and a store that does not match both is emptied
+ * and loaded again.
+ * <br>
+ * The store is not thread safe, {@link ProductManager} guards it with its
+ * read/write lock. Reviews that were read under the lock keep decoding from
+ * the arenas they were written to, which are never moved.
+ *
+ * @author pc
+ */
+class OffHeapReviewStore implements Closeable {
+
+    static final int DEFAULT_ARENA_SIZE = 64 * 1024 * 1024;
+    private static final long MAGIC = 0x504d5245564945L;
+    private static final int VERSION = 2;
+    /*
+    File header: magic (long), version (int), arena size (int), top (long),
+    loaded flag (int), padding and the SHA-256 digest of the source
+     */
+    private static final int FILE_HEADER = 64;
+    private static final int TOP_POSITION = 16;
+    private static final int LOADED_POSITION = 24;
+    private static final int SOURCE_POSITION = 32;
+    private static final int SOURCE_LENGTH = 32;
+    /*
+    Segment header: product id (int), capacity (int), used bytes (int),
+    rating (byte) and padding
+     */
+    private static final int SEGMENT_HEADER = 16;
+    /*
+    Record: rating (byte), comments length (int), UTF-8 comments
+     */
+    private static final int RECORD_HEADER = 5;
+    private static final int MIN_SEGMENT = 64;
+    private static final int MAX_SEGMENT = 64 * 1024;
+    private static final Rating[] RATINGS = Rating.values();
+
+    private final FileChannel channel;
+    private final int arenaSize;
+    /*
+    Arenas are replaced by a longer copy when the store grows, so reviews
+    decoded outside of the lock never see a partly updated list
+     */
+    private volatile ByteBuffer[] arenas = new ByteBuffer[0];
+    private final Map<Integer, Chain[]> chains = new HashMap<>();
+    private final boolean restored;
+    private boolean loaded;
+    private long top;
+
+    private OffHeapReviewStore(FileChannel channel, int arenaSize,
+            byte[] source) throws IOException {
+        this.channel = channel;
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+        if (channel != null && channel.size() >= FILE_HEADER) {
+            channel.read(header, 0);
+            if (header.getLong(0) != MAGIC) {
+                throw new IOException("Not a review store file");
+            }
+        }
+        if (channel != null && header.getInt(8) == VERSION
+                && header.getInt(LOADED_POSITION) == 1
+                && Arrays.equals(source, sourceOf(header))) {
+            this.arenaSize = header.getInt(12);
+            top = header.getLong(TOP_POSITION);
+            restored = true;
+            loaded = true;
+            restore();
+        } else {
+            /*
+            A store of an older version, of other data or of a load that did
+            not complete is emptied, as it may lack reviews of the data
+             */
+            if (channel != null) {
+                channel.truncate(0);
+            }
+            this.arenaSize = arenaSize;
+            top = FILE_HEADER;
+            restored = false;
+            ByteBuffer first = arena(0);
+            first.putLong(0, MAGIC);
+            first.putInt(8, VERSION);
+            first.putInt(12, arenaSize);
+            first.putLong(TOP_POSITION, top);
+            first.putInt(LOADED_POSITION, 0);
+            if (source != null) {
+                first.position(SOURCE_POSITION);
+                first.put(source);
+                first.position(0);
+            }
+        }
+    }
+
+    /**
+     * Creates a store in direct memory
+     *
+     * @param arenaSize the size of each block of reserved memory
+     * @return a new empty store
+     */
+    static OffHeapReviewStore allocate(int arenaSize) {
+        try {
+            return new OffHeapReviewStore(null, arenaSize, null);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Opens a store mapped to a file, restoring the reviews that it already
+     * contains when they were completely loaded from the same source
+     *
+     * @param file the store file, created if it does not exist
+     * @param arenaSize the size of each mapped block of a new file
+     * @param source describes the data files that reviews are loaded from,
+     * such as their folder, formats, names, sizes and modification times
+     * @return the store
+     * @throws IOException if the file cannot be mapped or is not a store
+     */
+    static OffHeapReviewStore open(Path file, int arenaSize, String source)
+            throws IOException {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256")
+                    .digest(source.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            return new OffHeapReviewStore(channel, arenaSize, digest);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Tells whether the store was reopened from a file that contains all
+     * reviews of its source
+     *
+     * @return true if reviews were restored from the file
+     */
+    boolean isRestored() {
+        return restored;
+    }
+
+    /**
+     * Records that all reviews of the source have been loaded and writes the
+     * store to the storage device, so that it can be restored when it is
+     * opened again. Adding a review afterwards clears the record, as the
+     * review is not part of the source.
+     */
+    void markLoaded() {
+        if (channel != null && !loaded) {
+            arenas[0].putInt(LOADED_POSITION, 1);
+            loaded = true;
+        }
+        force();
+    }
+
+    /**
+     * Get the reviews of a product, bucketed by rating and backed by this
+     * store
+     *
+     * @param productId product id
+     * @return a review list that appends new reviews to this store
+     */
+    RatedReviews reviews(int productId) {
+        Chain[] productChains = chains(productId);
+        return new RatedReviews(rating -> productChains[rating.ordinal()]);
+    }
+
+    /**
+     * Writes changes of a file backed store to the storage device
+     */
+    void force() {
+        if (channel != null) {
+            for (ByteBuffer arena : arenas) {
+                ((MappedByteBuffer) arena).force();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            force();
+            channel.close();
+        }
+    }
+
+    private Chain[] chains(int productId) {
+        return chains.computeIfAbsent(productId, id -> {
+            Chain[] productChains = new Chain[RATINGS.length];
+            for (Rating rating : RATINGS) {
+                productChains[rating.ordinal()] = new Chain(id, rating);
+            }
+            return productChains;
+        });
+    }
+
+    /*
+    Walks all segments in allocation order, which is also the order of
+    segments within each chain, skipping the unused tail of each arena
+     */
+    private void restore() throws IOException {
+        long address = FILE_HEADER;
+        while (address < top) {
+            ByteBuffer arena = arena((int) (address / arenaSize));
+            int position = (int) (address % arenaSize);
+            if (arenaSize - position < SEGMENT_HEADER
+                    || arena.getInt(position + 4) == 0) {
+                address += arenaSize - position;
+                continue;
+            }
+            int productId = arena.getInt(position);
+            int capacity = arena.getInt(position + 4);
+            int used = arena.getInt(position + 8);
+            Rating rating = RATINGS[arena.get(position + 12)];
+            chains(productId)[rating.ordinal()].restore(address, used);
+            address += capacity;
+        }
+    }
+
+    /**
+     * Get a review that does not depend on this store, for reviews that are
+     * used after the lock that guards the store was released
+     *
+     * @param review a review, which may be read from a store
+     * @return the review itself, or a heap copy of a review of a store
+     */
+    static Review detach(Review review) {
+        return (review instanceof OffHeapReview)
+                ? new Review(review.getRating(), review.getComments())
+                : review;
+    }
+
+    private static byte[] sourceOf(ByteBuffer header) {
+        byte[] source = new byte[SOURCE_LENGTH];
+        ByteBuffer view = header.duplicate();
+        view.position(SOURCE_POSITION);
+        view.get(source);
+        return source;
+    }
+
+    private ByteBuffer arena(int index) throws IOException {
+        while (arenas.length <= index) {
+            ByteBuffer[] grown = Arrays.copyOf(arenas, arenas.length + 1);
+            grown[arenas.length] = (channel == null)
+                    ? ByteBuffer.allocateDirect(arenaSize)
+                    : channel.map(FileChannel.MapMode.READ_WRITE,
+                            (long) arenas.length * arenaSize, arenaSize);
+            arenas = grown;
+        }
+        return arenas[index];
+    }
+
+    private ByteBuffer arenaOf(long address) {
+        return arenas[(int) (address / arenaSize)];
+    }
+
+    private long allocate(int productId, Rating rating, int capacity) {
+        if (capacity > arenaSize - FILE_HEADER) {
+            throw new IllegalArgumentException("Review of " + capacity
+                    + " bytes does not fit into the review store");
+        }
+        int position = (int) (top % arenaSize);
+        if (arenaSize - position < capacity) {
+            top += arenaSize - position;
+            position = 0;
+        }
+        long address = top;
+        ByteBuffer arena;
+        try {
+            arena = arena((int) (address / arenaSize));
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to extend review store",
+                    ex);
+        }
+        arena.putInt(position, productId);
+        arena.putInt(position + 4, capacity);
+        arena.putInt(position + 8, 0);
+        arena.put(position + 12, (byte) rating.ordinal());
+        top += capacity;
+        arenas[0].putLong(TOP_POSITION, top);
+        return address;
+    }
+
+    private Rating rating(long record) {
+        return RATINGS[arenaOf(record).get((int) (record % arenaSize))];
+    }
+
+    private String comments(long record) {
+        ByteBuffer view = arenaOf(record).duplicate();
+        int position = (int) (record % arenaSize);
+        byte[] bytes = new byte[view.getInt(position + 1)];
+        view.position(position + RECORD_HEADER);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int recordLength(long record) {
+        return RECORD_HEADER
+                + arenaOf(record).getInt((int) (record % arenaSize) + 1);
+    }
+
+    /**
+     * {@code Chain} is the list of reviews of one product with one rating,
+     * stored in a chain of segments
+     */
+    private class Chain extends AbstractSequentialList<Review>
+            implements Serializable {
+
+        private final int productId;
+        private final Rating rating;
+        private long[] segments = new long[0];
+        private int[] counts = new int[0];
+        private int segmentCount;
+        private int size;
+
+        private Chain(int productId, Rating rating) {
+            this.productId = productId;
+            this.rating = rating;
+        }
+
+        private void restore(long segment, int used) {
+            addSegment(segment);
+            long record = segment + SEGMENT_HEADER;
+            long end = record + used;
+            while (record < end) {
+                record += recordLength(record);
+                counts[segmentCount - 1]++;
+                size++;
+            }
+        }
+
+        private void addSegment(long segment) {
+            if (segmentCount == segments.length) {
+                segments = Arrays.copyOf(segments,
+                        Math.max(4, segmentCount * 2));
+                counts = Arrays.copyOf(counts, segments.length);
+            }
+            segments[segmentCount++] = segment;
+        }
+
+        @Override
+        public boolean add(Review review) {
+            byte[] comments = review.getComments()
+                    .getBytes(StandardCharsets.UTF_8);
+            int length = RECORD_HEADER + comments.length;
+            long segment = (segmentCount == 0) ? -1
+                    : segments[segmentCount - 1];
+            if (segment < 0 || free(segment) < length) {
+                int capacity = Math.min(
+                        Math.min(MAX_SEGMENT, arenaSize - FILE_HEADER),
+                        MIN_SEGMENT << Math.min(segmentCount, 20));
+                segment = allocate(productId, rating,
+                        Math.max(capacity, SEGMENT_HEADER + length));
+                addSegment(segment);
+            }
+            ByteBuffer arena = arenaOf(segment);
+            int position = (int) (segment % arenaSize);
+            int used = arena.getInt(position + 8);
+            int record = position + SEGMENT_HEADER + used;
+            arena.put(record, (byte) rating.ordinal());
+            arena.putInt(record + 1, comments.length);
+            ByteBuffer view = arena.duplicate();
+            view.position(record + RECORD_HEADER);
+            view.put(comments);
+            arena.putInt(position + 8, used + length);
+            counts[segmentCount - 1]++;
+            size++;
+            modCount++;
+            if (loaded) {
+                arenas[0].putInt(LOADED_POSITION, 0);
+                loaded = false;
+            }
+            return true;
+        }
+
+        private int free(long segment) {
+            ByteBuffer arena = arenaOf(segment);
+            int position = (int) (segment % arenaSize);
+            return arena.getInt(position + 4) - SEGMENT_HEADER
+                    - arena.getInt(position + 8);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public ListIterator<Review> listIterator(int index) {
+            if (index < 0 || index > size) {
+                throw new IndexOutOfBoundsException("Index: " + index
+                        + ", Size: " + size);
+            }
+            RecordIterator iterator = new RecordIterator();
+            iterator.seek(index);
+            return iterator;
+        }
+
+        /*
+        Reviews are written to the stream as an ordinary list, so a
+        serialized copy does not depend on this store
+         */
+        private Object writeReplace() throws ObjectStreamException {
+            return new ArrayList<>(this);
+        }
+
+        /**
+         * {@code RecordIterator} walks the records of a chain. Records only
+         * know their own length, so moving backwards seeks from the start
+         * of the segment that holds the previous record.
+         */
+        private class RecordIterator implements ListIterator<Review> {
+
+            private int segmentIndex;
+            private long record = -1;
+            private int index;
+
+            private void seek(int target) {
+                int first = 0;
+                segmentIndex = 0;
+                while (segmentIndex < segmentCount - 1
+                        && first + counts[segmentIndex] <= target) {
+                    first += counts[segmentIndex++];
+                }
+                record = (segmentCount == 0) ? -1
+                        : segments[segmentIndex] + SEGMENT_HEADER;
+                for (int i = first; i < target; i++) {
+                    record += recordLength(record);
+                }
+                index = target;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public Review next() {
+                long current = skip();
+                return new OffHeapReview(OffHeapReviewStore.this, current);
+            }
+
+            private long skip() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                long segment = segments[segmentIndex];
+                ByteBuffer arena = arenaOf(segment);
+                int used = arena.getInt((int) (segment % arenaSize) + 8);
+                while (record >= segment + SEGMENT_HEADER + used) {
+                    segment = segments[++segmentIndex];
+                    record = segment + SEGMENT_HEADER;
+                    used = arenaOf(segment)
+                            .getInt((int) (segment % arenaSize) + 8);
+                }
+                long current = record;
+                record += recordLength(current);
+                index++;
+                return current;
+            }
+
+            @Override
+            public int nextIndex() {
+                return index;
+            }
+
+            @Override
+            public int previousIndex() {
+                return index - 1;
+            }
+
+            @Override
+            public boolean hasPrevious() {
+                return index > 0;
+            }
+
+            @Override
+            public Review previous() {
+                if (!hasPrevious()) {
+                    throw new NoSuchElementException();
+                }
+                seek(index - 1);
+                return new OffHeapReview(OffHeapReviewStore.this, record);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException(
+                        "Reviews can not be removed");
+            }
+
+            @Override
+            public void set(Review review) {
+                throw new UnsupportedOperationException(
+                        "Reviews can not be replaced");
+            }
+
+            @Override
+            public void add(Review review) {
+                throw new UnsupportedOperationException(
+                        "Reviews can only be appended");
+            }
+        }
+    }
+
+    /**
+     * {@code OffHeapReview} is a flyweight view of a review record, which
+     * decodes the rating and comments from the store when they are read
+     */
+    private static class OffHeapReview extends Review {
+
+        private final transient OffHeapReviewStore store;
+        private final transient long record;
+
+        private OffHeapReview(OffHeapReviewStore store, long record) {
+            super(null, null);
+            this.store = store;
+            this.record = record;
+        }
+
+        @Override
+        public Rating getRating() {
+            return store.rating(record);
+        }
+
+        @Override
+        public String getComments() {
+            return store.comments(record);
+        }
+
+        private Object writeReplace() throws ObjectStreamException {
+            return new Review(getRating(), getComments());
+        }
+    }
+}
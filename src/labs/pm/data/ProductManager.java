@@ -16,37 +16,49 @@
  */
 package labs.pm.data;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.math.BigDecimal;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.MessageFormat;
 import java.text.NumberFormat;
-import java.text.ParseException;
+import java.text.ParsePosition;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.time.format.FormatStyle;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  *
@@ -54,7 +66,11 @@ import java.util.stream.Collectors;
  */
 public class ProductManager {
 
-    private Map<Product, List<Review>> products = new HashMap<>();
+    private Map<Product, RatedReviews> products = new HashMap<>();
+    private Map<Integer, RatingHistogram> histograms = new HashMap<>();
+    private OffHeapReviewStore reviewStore;
+    private SearchIndex searchIndex = new SearchIndex();
+    private Quarantine quarantine = new Quarantine();
 
     private ResourceBundle config
             = ResourceBundle.getBundle("labs.pm.data.config");
@@ -76,6 +92,14 @@ public class ProductManager {
                     "zh-CN", new ResourceFormatter(Locale.CHINA));
     private static final Logger logger
             = Logger.getLogger(ProductManager.class.getName());
+    /*
+    Products and reviews may be accessed by several threads, for example by
+    the requests of an embedded server. Methods that only read data share the
+    read lock, and methods that change data take the write lock.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Lock readLock = lock.readLock();
+    private final Lock writeLock = lock.writeLock();
 
     public ProductManager(Locale locale) {
         this(locale.toLanguageTag());
@@ -86,9 +110,25 @@ public class ProductManager {
         loadAllData();
     }
 
+    /**
+     * Creates a product manager that loads its data from the given folder
+     * instead of the configured {@code data.folder}
+     *
+     * @param languageTag language tag of the default locale
+     * @param dataFolder folder that contains product and review data files
+     */
+    public ProductManager(String languageTag, Path dataFolder) {
+        this.dataFolder = dataFolder;
+        changeLocale(languageTag);
+        loadAllData();
+    }
+
     public void changeLocale(String languageTag) {
-        formatter = formatters.getOrDefault(languageTag,
-                formatters.get("en-GB"));
+        formatter = resolveFormatter(languageTag);
+    }
+
+    private static ResourceFormatter resolveFormatter(String languageTag) {
+        return formatters.getOrDefault(languageTag, formatters.get("en-GB"));
     }
 
     public static Set<String> getSupportedLocales() {
@@ -97,16 +137,32 @@ public class ProductManager {
 
     public Product createProduct(int id, String name, BigDecimal price,
             Rating rating, LocalDate bestBefore) {
-        Product product = new Food(id, name, price, rating, bestBefore);
-        products.putIfAbsent(product, new ArrayList<>());
-        return product;
+        writeLock.lock();
+        try {
+            Product product = new Food(id, name, price, rating, bestBefore);
+            if (products.putIfAbsent(product, newReviews(id)) == null) {
+                searchIndex.addProduct(product);
+            }
+            histograms.putIfAbsent(id, new RatingHistogram());
+            return product;
+        } finally {
+            writeLock.unlock();
+        }
     }
 
     public Product createProduct(int id, String name, BigDecimal price,
             Rating rating) {
-        Product product = new Drink(id, name, price, rating);
-        products.putIfAbsent(product, new ArrayList<>());
-        return product;
+        writeLock.lock();
+        try {
+            Product product = new Drink(id, name, price, rating);
+            if (products.putIfAbsent(product, newReviews(id)) == null) {
+                searchIndex.addProduct(product);
+            }
+            histograms.putIfAbsent(id, new RatingHistogram());
+            return product;
+        } finally {
+            writeLock.unlock();
+        }
     }
 
     /**
@@ -135,16 +191,20 @@ public class ProductManager {
         such a Product is not found. Return this value from the findProduct
         method.
          */
-
-        return products.keySet()
-                .stream()
-                .filter(p -> p.getId() == id)
-                .findFirst()
-                .orElseThrow(()
-                        -> new ProductManagerException("Product with id "
-                        + id + " not found")
-                );
-        //orElseGet method was replaced with orElseThrow method
+        readLock.lock();
+        try {
+            return products.keySet()
+                    .stream()
+                    .filter(p -> p.getId() == id)
+                    .findFirst()
+                    .orElseThrow(()
+                            -> new ProductManagerException("Product with id "
+                            + id + " not found")
+                    );
+            //orElseGet method was replaced with orElseThrow method
+        } finally {
+            readLock.unlock();
+        }
     }
 
     /*
@@ -155,59 +215,46 @@ public class ProductManager {
      */
     public Product reviewProduct(Product product, Rating rating,
             String comments) {
-        /*
-        Locate the entry in the HashMap that corresponds to the product and 
-        get from it, the list of reviews.
-         */
-        List<Review> reviews = products.get(product);
-        /*
-        Once the entry is located, remove it.
-         */
-        products.remove(product, reviews);
-        /*
-        Create a new review object and append it to the reviews list, using
-        rating and coments as parameters for the Review constructor
-         */
-        reviews.add(new Review(rating, comments));
-        /*
-        Iterate through the list of reviews and calculate the sum of all 
-        ratings.
-        Use the stream method to obtain a Stream from the list of reviews for
-        the given product.
-        Use mapToInt method to convert each Review object to an int value of 
-        Rating.
-        Use Lambda expression that implements the ToIntFunction interface to 
-        provide conversion of each review to int value for its Rating.
-        Use average method to calculate the aerage rating for reviews in the 
-        stream.
-        Average method returns an OptionalDouble object.
-        Use orElse method to get the double value from the OptionalDouble object
-        or return 0 if no reviews were present in the stream.
-        This stream returns a double number that represents an average rating
-        value.
-        Convert this double number to int using Math.round method and cast 
-        returned result into an int value.
-        Invoke convert method provided by the Rateable interface to convert the 
-        average value of stars into a Rating enum value.
-        Pass this Rating to the applyRating method and reassign the product 
-        object reference.
-         */
+        writeLock.lock();
+        try {
+            /*
+            Locate the entry in the HashMap that corresponds to the product and 
+            get from it, the list of reviews.
+             */
+            RatedReviews reviews = products.get(product);
+            /*
+            Once the entry is located, remove it.
+             */
+            products.remove(product, reviews);
+            /*
+            Create a new review object and append it to the reviews list, using
+            rating and coments as parameters for the Review constructor.
+            The list keeps reviews bucketed by rating, so it stays sorted.
+             */
+            reviews.add(new Review(rating, comments));
+            /*
+            Count the new rating in the product histogram, which keeps a
+            counter per Rating value, so the average rating is obtained
+            without iterating through the list of reviews.
+            Pass this Rating to the applyRating method and reassign the product 
+            object reference.
+             */
+            RatingHistogram histogram = histogramOf(product);
+            histogram.add(rating);
+            product = product.applyRating(histogram.getAverageRating());
 
-        product = product.applyRating(
-                Rateable.convert(
-                        (int) Math.round(
-                                reviews.stream()
-                                        .mapToInt(r -> r.getRating().ordinal())
-                                        .average()
-                                        .orElse(0))));
-
-        /* 
-        Create a new product that is essentially a replica of the old one
-        but with a different rating
-         */
-        products.put(product, reviews);
-        // Return the updated product
-        return product;
+            /* 
+            Create a new product that is essentially a replica of the old one
+            but with a different rating
+             */
+            products.put(product, reviews);
+            searchIndex.addProduct(product);
+            searchIndex.addReview(product.getId(), comments);
+            // Return the updated product
+            return product;
+        } finally {
+            writeLock.unlock();
+        }
     }
 
     /*
@@ -223,6 +270,227 @@ public class ProductManager {
         return null;
     }
 
+    /**
+     * Applies a batch of reviews, grouped by product id. Reviews for each
+     * product are appended in the order they are supplied, and the product
+     * rating is recalculated and applied only once per product.
+     *
+     * @param productReviews reviews to apply
+     * @return a summary of the reviewed products and unknown product ids
+     */
+    public ReviewSummary reviewProducts(
+            Collection<ProductReview> productReviews) {
+        writeLock.lock();
+        try {
+            Map<Integer, List<ProductReview>> reviewsById = productReviews
+                    .stream()
+                    .collect(Collectors.groupingBy(ProductReview::getProductId,
+                            LinkedHashMap::new, Collectors.toList()));
+            /*
+            Locate all affected products with a single pass over the products
+            Map, rather than calling findProduct for every review.
+             */
+            Map<Integer, Product> productsById = products.keySet()
+                    .stream()
+                    .filter(p -> reviewsById.containsKey(p.getId()))
+                    .collect(Collectors.toMap(Product::getId, p -> p));
+            List<Product> reviewedProducts = new ArrayList<>();
+            Set<Integer> unknownIds = new TreeSet<>();
+            int reviewCount = 0;
+            for (Map.Entry<Integer, List<ProductReview>> entry
+                    : reviewsById.entrySet()) {
+                Product product = productsById.get(entry.getKey());
+                if (product == null) {
+                    unknownIds.add(entry.getKey());
+                    continue;
+                }
+                RatedReviews reviews = products.remove(product);
+                RatingHistogram histogram = histogramOf(product);
+                for (ProductReview productReview : entry.getValue()) {
+                    reviews.add(new Review(productReview.getRating(),
+                            productReview.getComments()));
+                    histogram.add(productReview.getRating());
+                    searchIndex.addReview(product.getId(),
+                            productReview.getComments());
+                }
+                reviewCount += entry.getValue().size();
+                product = product.applyRating(histogram.getAverageRating());
+                products.put(product, reviews);
+                searchIndex.addProduct(product);
+                reviewedProducts.add(product);
+            }
+            if (!unknownIds.isEmpty()) {
+                logger.log(Level.INFO, "Products with ids {0} not found",
+                        unknownIds);
+            }
+            return new ReviewSummary(reviewedProducts, unknownIds, reviewCount);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Get the rating histogram of a product, which provides rating counts,
+     * median and percentile ratings and the rating distribution in constant
+     * time
+     *
+     * @param id product id
+     * @return a snapshot of the product rating histogram
+     * @throws ProductManagerException if the product is not found
+     */
+    public RatingHistogram getRatingHistogram(int id)
+            throws ProductManagerException {
+        readLock.lock();
+        try {
+            RatingHistogram histogram = histograms.get(id);
+            if (histogram == null) {
+                throw new ProductManagerException("Product with id "
+                        + id + " not found");
+            }
+            return new RatingHistogram(histogram);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private RatingHistogram histogramOf(Product product) {
+        return histograms.computeIfAbsent(product.getId(),
+                id -> new RatingHistogram());
+    }
+
+    /*
+    Rebuilds rating histograms and the search index from the review lists,
+    after the products Map has been loaded or restored.
+     */
+    private void buildIndexes() {
+        searchIndex.clear();
+        buildIndexes(Set.of());
+    }
+
+    /*
+    Counts the ratings of each product from the sizes of its review buckets,
+    and adds products to the search index, except for products that were
+    already indexed with the comment terms kept in the data image
+     */
+    private void buildIndexes(Set<Integer> indexed) {
+        histograms = new HashMap<>();
+        products.forEach((product, reviews) -> {
+            RatingHistogram histogram = histogramOf(product);
+            for (Rating rating : Rating.values()) {
+                histogram.add(rating, reviews.getReviews(rating).size());
+            }
+            if (!indexed.contains(product.getId())) {
+                searchIndex.addProduct(product);
+                for (Review review : reviews) {
+                    searchIndex.addReview(product.getId(),
+                            review.getComments());
+                }
+            }
+        });
+    }
+
+    /**
+     * Searches product names and review comments. Query terms are separated
+     * by spaces and a term ending with {@code *} matches any word with that
+     * prefix.
+     *
+     * @param query search terms
+     * @param limit the maximum number of products to return
+     * @return products that match any term, most relevant first
+     */
+    public List<Product> searchProducts(String query, int limit) {
+        readLock.lock();
+        try {
+            return searchIndex.searchProducts(query, limit);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Searches review comments. Only the reviews of products that the index
+     * reports as mentioning every query term are checked.
+     *
+     * @param query search terms, a term ending with {@code *} matches any
+     * word with that prefix
+     * @param limit the maximum number of reviews to return
+     * @return reviews that mention all terms, grouped by product, most
+     * relevant product first
+     */
+    public Map<Product, List<Review>> searchReviews(String query, int limit) {
+        Map<Product, List<Review>> result = new LinkedHashMap<>();
+        int count = 0;
+        readLock.lock();
+        try {
+            Iterator<Product> candidates
+                    = searchIndex.searchCommentedProducts(query);
+            while (count < limit && candidates.hasNext()) {
+                Product product = candidates.next();
+                for (Review review : products.get(product)) {
+                    if (count == limit) {
+                        break;
+                    }
+                    if (SearchIndex.matches(query, review.getComments())) {
+                        result.computeIfAbsent(product,
+                                p -> new ArrayList<>())
+                                .add(OffHeapReviewStore.detach(review));
+                        count++;
+                    }
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+        return result;
+    }
+
+    /**
+     * Get up to {@code n} reviews of a product with the highest ratings,
+     * without sorting the product reviews
+     *
+     * @param id product id
+     * @param n the maximum number of reviews to return
+     * @return the best reviews, highest rating first
+     * @throws ProductManagerException if the product is not found
+     */
+    public List<Review> getTopReviews(int id, int n)
+            throws ProductManagerException {
+        readLock.lock();
+        try {
+            return detach(products.get(findProduct(id)).top(n));
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Get up to {@code n} reviews of a product with the lowest ratings,
+     * without sorting the product reviews
+     *
+     * @param id product id
+     * @param n the maximum number of reviews to return
+     * @return the worst reviews, lowest rating first
+     * @throws ProductManagerException if the product is not found
+     */
+    public List<Review> getWorstReviews(int id, int n)
+            throws ProductManagerException {
+        readLock.lock();
+        try {
+            return detach(products.get(findProduct(id)).worst(n));
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /*
+    Reviews of an off-heap store are copied before they leave the read lock
+     */
+    private static List<Review> detach(List<Review> reviews) {
+        return reviews.stream()
+                .map(OffHeapReviewStore::detach)
+                .collect(Collectors.toList());
+    }
+
     /*
     Overloaded version of printProduct method that uses int id parameter and 
     locates the required product using findProduct method
@@ -240,28 +508,188 @@ public class ProductManager {
 
     //Creates, prepares and prints a report on a product and its review    
     public void printProductReport(Product product) throws IOException {
-        List<Review> reviews = products.get(product);
-        Path productFile
-                = reportsFolder.resolve(MessageFormat.format(
-                        config.getString("report.file"), product.getId()));
-        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
-                Files.newOutputStream(productFile,
-                        StandardOpenOption.CREATE), "UTF-8"))) {
-            out.append(formatter.formatProduct(product)
-                    + System.lineSeparator());
-            Collections.sort(reviews);
-            if (reviews.isEmpty()) {
-                out.append(formatter.getText("no.reviews")
-                        + System.lineSeparator());
-            } else {
+        readLock.lock();
+        try {
+            Path productFile
+                    = reportsFolder.resolve(MessageFormat.format(
+                            config.getString("report.file"), product.getId()));
+            try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                    Files.newOutputStream(productFile,
+                            StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING), "UTF-8"))) {
+                renderProductReport(product, List.of(formatter), List.of(out));
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Formats a product for the given locale
+     *
+     * @param id product id
+     * @param languageTag language tag of the locale to format in
+     * @return the formatted product
+     * @throws ProductManagerException if the product is not found
+     */
+    public String formatProduct(int id, String languageTag)
+            throws ProductManagerException {
+        return resolveFormatter(languageTag).formatProduct(findProduct(id));
+    }
+
+    /**
+     * Formats the report on a product and its reviews for the given locale,
+     * with the same content as the report printed to a file
+     *
+     * @param id product id
+     * @param languageTag language tag of the locale to format in
+     * @return the formatted report
+     * @throws ProductManagerException if the product is not found
+     */
+    public String formatProductReport(int id, String languageTag)
+            throws ProductManagerException {
+        StringBuilder txt = new StringBuilder();
+        readLock.lock();
+        try {
+            renderProductReport(findProduct(id),
+                    List.of(resolveFormatter(languageTag)), List.of(txt));
+        } catch (IOException ex) {
+            // StringBuilder does not throw IOException
+            throw new IllegalStateException(ex);
+        } finally {
+            readLock.unlock();
+        }
+        return txt.toString();
+    }
+
+    /*
+    Overloaded version of the multi-locale printProductReport method that uses
+    int id parameter and locates the required product using findProduct method
+     */
+    public void printProductReport(int id, Collection<String> languageTags) {
+        try {
+            printProductReport(findProduct(id), languageTags);
+        } catch (ProductManagerException ex) {
+            logger.log(Level.INFO, ex.getMessage());
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE,
+                    "Error printing product report " + ex.getMessage(), ex);
+        }
+    }
 
-                out.append(reviews.stream()
-                        .map(r -> formatter.formatReview(r)
-                        + System.lineSeparator())
-                        .collect(Collectors.joining()));
+    /**
+     * Prints a report on a product and its reviews for several locales at
+     * once, into one report file per locale.
+     * <br>
+     * Product and reviews are walked only once and every formatted line is
+     * written to all locale reports.
+     *
+     * @param product the product to report on
+     * @param languageTags language tags of the locales to report in
+     * @throws IOException if a report file cannot be written
+     */
+    public void printProductReport(Product product,
+            Collection<String> languageTags) throws IOException {
+        readLock.lock();
+        try {
+            Map<String, ResourceFormatter> targets
+                    = resolveFormatters(languageTags);
+            printProductReport(product, targets);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Prints reports on all products and their reviews for several locales in
+     * a single pass over the products, into one report file per product and
+     * locale.
+     *
+     * @param languageTags language tags of the locales to report in
+     */
+    public void printProductReports(Collection<String> languageTags) {
+        readLock.lock();
+        try {
+            Map<String, ResourceFormatter> targets
+                    = resolveFormatters(languageTags);
+            for (Product product : products.keySet()) {
+                try {
+                    printProductReport(product, targets);
+                } catch (IOException ex) {
+                    logger.log(Level.SEVERE, "Error printing product report "
+                            + ex.getMessage(), ex);
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /*
+    Resolves language tags to formatters in the same way as changeLocale,
+    ignoring tags that resolve to a formatter that is already present
+     */
+    private Map<String, ResourceFormatter> resolveFormatters(
+            Collection<String> languageTags) {
+        Map<String, ResourceFormatter> targets = new LinkedHashMap<>();
+        for (String languageTag : languageTags) {
+            ResourceFormatter target = resolveFormatter(languageTag);
+            targets.putIfAbsent(target.locale.toLanguageTag(), target);
+        }
+        return targets;
+    }
+
+    private void printProductReport(Product product,
+            Map<String, ResourceFormatter> targets) throws IOException {
+        List<PrintWriter> outs = new ArrayList<>(targets.size());
+        try {
+            for (String languageTag : targets.keySet()) {
+                Path productFile = reportsFolder.resolve(MessageFormat.format(
+                        config.getString("locale.report.file"),
+                        product.getId(), languageTag));
+                outs.add(new PrintWriter(new OutputStreamWriter(
+                        Files.newOutputStream(productFile,
+                                StandardOpenOption.CREATE,
+                                StandardOpenOption.TRUNCATE_EXISTING),
+                        "UTF-8")));
             }
+            renderProductReport(product, new ArrayList<>(targets.values()),
+                    outs);
+        } finally {
+            outs.forEach(PrintWriter::close);
         }
+    }
 
+    /*
+    Writes the report on a product to every output, formatting each line with
+    the formatter at the same position. Reviews are kept bucketed by rating,
+    so they are already in the order defined by Review.compareTo and are
+    walked once for all outputs without sorting.
+     */
+    private void renderProductReport(Product product,
+            List<ResourceFormatter> targets, List<? extends Appendable> outs)
+            throws IOException {
+        RatedReviews reviews = products.get(product);
+        /*
+        Only the read lock is held here, so the histogram is looked up without
+        creating it; histograms are created under the write lock
+         */
+        RatingHistogram histogram = histograms.get(product.getId());
+        for (int i = 0; i < outs.size(); i++) {
+            ResourceFormatter target = targets.get(i);
+            outs.get(i).append(target.formatProduct(product))
+                    .append(System.lineSeparator())
+                    .append(reviews.isEmpty() || histogram == null
+                            ? target.getText("no.reviews")
+                            : target.formatDistribution(histogram))
+                    .append(System.lineSeparator());
+        }
+        for (Review review : reviews) {
+            for (int i = 0; i < outs.size(); i++) {
+                outs.get(i).append(targets.get(i).formatReview(review))
+                        .append(System.lineSeparator());
+            }
+        }
     }
 
     /*
@@ -270,6 +698,25 @@ public class ProductManager {
      */
     public void printProducts(Predicate<Product> filter,
             Comparator<Product> sorter) {
+        System.out.println(formatProducts(filter, sorter, formatter));
+    }
+
+    /**
+     * Formats a filtered and sorted list of products for the given locale,
+     * one product per line
+     *
+     * @param filter selects the products to list
+     * @param sorter defines the order of the products
+     * @param languageTag language tag of the locale to format in
+     * @return the formatted products
+     */
+    public String formatProducts(Predicate<Product> filter,
+            Comparator<Product> sorter, String languageTag) {
+        return formatProducts(filter, sorter, resolveFormatter(languageTag));
+    }
+
+    private String formatProducts(Predicate<Product> filter,
+            Comparator<Product> sorter, ResourceFormatter formatter) {
         StringBuilder txt = new StringBuilder();
         /*
         Use keySet method to obtain a Set of Product objects from the products 
@@ -280,47 +727,66 @@ public class ProductManager {
         Use forEach method to append each formatted Product object to the 
         StringBuilder and a new line '\n' character.
          */
-        products.keySet()
-                .stream()
-                .sorted(sorter)
-                .filter(filter)
-                .forEach(p -> txt.append(formatter.formatProduct(p) + '\n'));
-        System.out.println(txt);
+        readLock.lock();
+        try {
+            products.keySet()
+                    .stream()
+                    .sorted(sorter)
+                    .filter(filter)
+                    .forEach(p -> txt.append(formatter.formatProduct(p))
+                    .append('\n'));
+            return txt.toString();
+        } finally {
+            readLock.unlock();
+        }
     }
 
     private Product loadProduct(Path file) {
-        Product product = null;
-        try {
-            product = parseProduct(
-                    Files.lines(dataFolder.resolve(file),
-                            Charset.forName("UTF-8")).findFirst().orElseThrow());
-        } catch (Exception ex) {
-            logger.log(Level.WARNING,
-                    "Error loading products " + ex.getMessage());
+        // Files.list already resolves the file against the data folder
+        try (BufferedReader in = Files.newBufferedReader(file,
+                StandardCharsets.UTF_8)) {
+            String text = in.readLine();
+            if (text == null) {
+                quarantine.reject(file, 0, "empty file", "");
+                return null;
+            }
+            return parseProduct(text, file, 1);
+        } catch (IOException ex) {
+            quarantine.reject(file, 0, "unreadable file",
+                    String.valueOf(ex.getMessage()));
+            return null;
         }
-        return product;
     }
 
-    private List<Review> loadReviews(Product product) {
-        List<Review> reviews = null;
+    private RatedReviews loadReviews(Product product) {
+        /*
+        A review store reopened from its file already contains the reviews, so
+        review data files do not need to be parsed again
+         */
+        if (reviewStore != null && reviewStore.isRestored()) {
+            return reviewStore.reviews(product.getId());
+        }
+        RatedReviews reviews = newReviews(product.getId());
         Path file = dataFolder.resolve(
                 MessageFormat.format(
                         config.getString("reviews.data.file"), product.getId())
         );
-        if (Files.notExists(file)) {
-            reviews = new ArrayList<>();
-        } else {
-            try {
-                reviews = Files.lines(file, Charset.forName("UTF-8"))
-                        .map(text -> parseReview(text))
-                        .filter(review -> review != null)
-                        .collect(Collectors.toList());
+        if (Files.exists(file)) {
+            long line = 0;
+            try (BufferedReader in = Files.newBufferedReader(file,
+                    StandardCharsets.UTF_8)) {
+                String text;
+                while ((text = in.readLine()) != null) {
+                    Review review = parseReview(text, file, ++line);
+                    if (review != null) {
+                        reviews.add(review);
+                    }
+                }
             } catch (IOException ex) {
-                logger.log(Level.WARNING,
-                        "Error loading reviews " + ex.getMessage());
+                quarantine.reject(file, line + 1, "unreadable file",
+                        String.valueOf(ex.getMessage()));
             }
         }
-
         return reviews;
     }
 
@@ -341,6 +807,8 @@ public class ProductManager {
                     Files.newOutputStream(tempFile, StandardOpenOption.CREATE))) {
                 out.writeObject(products);
                 products = new HashMap<>();
+                histograms = new HashMap<>();
+                searchIndex.clear();
             }
         } catch (IOException ex) {
             logger.log(Level.SEVERE,
@@ -358,42 +826,462 @@ public class ProductManager {
                     Files.newInputStream(tempFile, StandardOpenOption.DELETE_ON_CLOSE))) {
                 products = (HashMap) in.readObject();
             }
+            buildIndexes();
         } catch (Exception ex) {
             logger.log(Level.SEVERE,
                     "Error restoring data " + ex.getMessage(), ex);
         }
     }
 
+    private RatedReviews newReviews(int productId) {
+        return (reviewStore == null) ? new RatedReviews()
+                : reviewStore.reviews(productId);
+    }
+
+    /*
+    Reviews are kept on the Java heap, unless the review.store configuration
+    selects direct memory or a memory mapped review.store.file instead. Each
+    data folder has its own store file, which is only restored with the
+    formats and data files that it was loaded from.
+     */
+    private void openReviewStore(List<Path> files) {
+        try {
+            switch (config.getString("review.store")) {
+                case "direct":
+                    reviewStore = OffHeapReviewStore.allocate(
+                            OffHeapReviewStore.DEFAULT_ARENA_SIZE);
+                    break;
+                case "mapped":
+                    Path file = Path.of(MessageFormat.format(
+                            config.getString("review.store.file"),
+                            dataFolderKey()));
+                    Files.createDirectories(file.toAbsolutePath().getParent());
+                    reviewStore = OffHeapReviewStore.open(file,
+                            OffHeapReviewStore.DEFAULT_ARENA_SIZE,
+                            storeSource(files));
+                    break;
+            }
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error opening review store, keeping "
+                    + "reviews on the heap " + ex.getMessage(), ex);
+        }
+    }
+
+    private String storeSource(List<Path> files) throws IOException {
+        StringBuilder source = new StringBuilder(imageSource());
+        for (Path file : files) {
+            BasicFileAttributes attributes
+                    = Files.readAttributes(file, BasicFileAttributes.class);
+            source.append('\n').append(file.getFileName())
+                    .append('\t').append(attributes.size())
+                    .append('\t').append(
+                            attributes.lastModifiedTime().toMillis());
+        }
+        return source.toString();
+    }
+
+    /**
+     * Writes reviews of a memory mapped review store to its file and closes
+     * it. Other review stores and reviews on the heap need no closing. The
+     * product manager should not be used after it is closed.
+     */
+    public void close() {
+        writeLock.lock();
+        try {
+            if (reviewStore != null) {
+                reviewStore.close();
+            }
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error closing review store "
+                    + ex.getMessage(), ex);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
     private void loadAllData() {
+        openQuarantine();
         try {
-            products = Files.list(dataFolder)
-                    .filter(file -> file.getFileName().toString().startsWith("product"))
-                    .map(file -> loadProduct(file))
-                    .filter(product -> product != null)
-                    .collect(Collectors.toMap(product -> product,
-                            product -> loadReviews(product)));
+            List<Path> files;
+            try (Stream<Path> list = Files.list(dataFolder)) {
+                files = list.sorted(Comparator.comparing(
+                        file -> file.getFileName().toString()))
+                        .collect(Collectors.toList());
+            }
+            openReviewStore(files);
+            products = new HashMap<>();
+            Map<String, DataImage.Stamp> stamps = new HashMap<>();
+            DataImage image = openImage(files, stamps);
+            List<DataImage.Unit> units = new ArrayList<>();
+            Set<Integer> loaded = new HashSet<>();
+            Set<Integer> indexed = new HashSet<>();
+            searchIndex.clear();
+            try {
+                /*
+                Segments are read newest first and a product found in a newer
+                segment is skipped in older segments and in per product
+                files, so data compacted into segments replaces the files it
+                was made from
+                 */
+                MessageFormat indexFile = SegmentIndex.fileFormat(
+                        config.getString("segment.index.file"));
+                List<Integer> segments = files.stream()
+                        .mapToInt(file -> SegmentIndex.segmentNumber(
+                                indexFile, file.getFileName().toString()))
+                        .filter(number -> number >= 0)
+                        .boxed()
+                        .sorted(Comparator.reverseOrder())
+                        .collect(Collectors.toList());
+                for (int number : segments) {
+                    units.add(loadUnit(indexFile.format(new Object[]{number}),
+                            image, stamps, loaded, indexed,
+                            unit -> loadSegment(number, loaded, unit)));
+                }
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    if (name.startsWith("product")) {
+                        units.add(loadUnit(name, image, stamps, loaded,
+                                indexed,
+                                unit -> loadProductFile(file, loaded, unit)));
+                    }
+                }
+            } finally {
+                if (image != null) {
+                    image.close();
+                }
+            }
+            buildIndexes(indexed);
+            saveImage(image, units);
+            if (reviewStore != null) {
+                reviewStore.markLoaded();
+            }
         } catch (IOException ex) {
             logger.log(Level.SEVERE, "Error loading data " + ex.getMessage(), ex);
+        } finally {
+            quarantine.close();
+        }
+    }
+
+    /*
+    Takes the products of a unit, a segment or a product file with its
+    reviews file, from the data image while the files of the unit are
+    unchanged, and parses the files of the unit otherwise
+     */
+    private DataImage.Unit loadUnit(String name, DataImage image,
+            Map<String, DataImage.Stamp> stamps, Set<Integer> loaded,
+            Set<Integer> indexed,
+            Function<DataImage.Unit, List<String>> parser) {
+        DataImage.Unit cached = (image == null) ? null
+                : image.getUnit(name, stamps);
+        if (cached != null && loaded.containsAll(cached.getSkipped())) {
+            DataImage.Unit unit = new DataImage.Unit(name);
+            try {
+                image.read(cached, unit, (product, terms, counts)
+                        -> loadImageProduct(product, terms, counts, loaded,
+                                indexed, unit));
+                return unit;
+            } catch (IOException | RuntimeException ex) {
+                logger.log(Level.SEVERE, "Error reading data image, parsing "
+                        + name + " " + ex.getMessage(), ex);
+                /*
+                A unit that can not be decoded hands no product to the
+                loader, so reviews are never added to a review store twice.
+                Products are only left to remove when the loader failed.
+                Their terms may already be in the search index, which is then
+                filled again for every product.
+                 */
+                for (Product product : unit.getProducts()) {
+                    products.remove(product);
+                    loaded.remove(product.getId());
+                }
+                if (!unit.getProducts().isEmpty()) {
+                    searchIndex.clear();
+                    indexed.clear();
+                }
+            }
+        }
+        DataImage.Unit unit = new DataImage.Unit(name);
+        long rejected = quarantine.getRejected();
+        for (String file : parser.apply(unit)) {
+            unit.addFile(file, stamps.get(file));
+        }
+        if (quarantine.getRejected() > rejected) {
+            unit.setCacheable(false);
+        }
+        return unit;
+    }
+
+    private RatedReviews loadImageProduct(Product product, String[] terms,
+            int[] counts, Set<Integer> loaded, Set<Integer> indexed,
+            DataImage.Unit unit) {
+        if (!loaded.add(product.getId())) {
+            unit.addSkipped(product.getId());
+            return null;
+        }
+        unit.addProduct(product);
+        searchIndex.addProduct(product);
+        searchIndex.addCommentTerms(product.getId(), terms, counts);
+        indexed.add(product.getId());
+        if (reviewStore != null && reviewStore.isRestored()) {
+            products.put(product, reviewStore.reviews(product.getId()));
+            return null;
+        }
+        RatedReviews reviews = newReviews(product.getId());
+        products.put(product, reviews);
+        return reviews;
+    }
+
+    private List<String> loadProductFile(Path file, Set<Integer> loaded,
+            DataImage.Unit unit) {
+        String name = file.getFileName().toString();
+        Product product = loadProduct(file);
+        if (product == null) {
+            return List.of(name);
+        }
+        if (loaded.add(product.getId())) {
+            unit.addProduct(product);
+            products.put(product, loadReviews(product));
+        } else {
+            unit.addSkipped(product.getId());
+        }
+        return List.of(name, MessageFormat.format(
+                config.getString("reviews.data.file"), product.getId()));
+    }
+
+    /*
+    The data image is only used with the data folder and formats it was made
+    from, and the size and modification time of every data file are compared
+    with its manifest
+     */
+    private DataImage openImage(List<Path> files,
+            Map<String, DataImage.Stamp> stamps) {
+        if (!config.getString("data.image").equals("on")) {
+            return null;
+        }
+        try {
+            for (Path file : files) {
+                stamps.put(file.getFileName().toString(), DataImage.Stamp.of(
+                        Files.readAttributes(file, BasicFileAttributes.class)));
+            }
+            Path imageFile = imageFile();
+            return Files.exists(imageFile)
+                    ? DataImage.open(imageFile, imageSource()) : null;
+        } catch (IOException ex) {
+            logger.log(Level.INFO, "Not using data image " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /*
+    The image is rewritten when a unit was parsed, or when units of the image
+    are gone. Units with rejected rows are parsed on every load and do not
+    cause a rewrite by themselves. Comment terms are taken from the search
+    index, which is complete by then.
+     */
+    private void saveImage(DataImage image, List<DataImage.Unit> units) {
+        if (!config.getString("data.image").equals("on")) {
+            return;
+        }
+        long fromImage = units.stream()
+                .filter(DataImage.Unit::isFromImage)
+                .count();
+        boolean parsed = units.stream()
+                .anyMatch(unit -> unit.isCacheable() && !unit.isFromImage());
+        if (!parsed && image != null && image.getUnitCount() == fromImage) {
+            return;
+        }
+        try {
+            Map<Integer, Map<String, Integer>> terms
+                    = searchIndex.getCommentTerms();
+            DataImage.write(imageFile(), imageSource(), units,
+                    product -> products.get(product),
+                    product -> terms.getOrDefault(product.getId(), Map.of()));
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error writing data image "
+                    + ex.getMessage(), ex);
+        }
+    }
+
+    /*
+    Each data folder has its own image, so loading another folder, such as
+    the scratch folder of a soak test, does not replace the image of the
+    configured data folder. Review store files are named the same way.
+     */
+    private Path imageFile() {
+        return Path.of(MessageFormat.format(
+                config.getString("data.image.file"), dataFolderKey()));
+    }
+
+    /*
+    Names files kept per data folder after a hash of its absolute path
+     */
+    private String dataFolderKey() {
+        return String.format("%08x", dataFolder.toAbsolutePath().normalize()
+                .toString().hashCode());
+    }
+
+    private String imageSource() {
+        return String.join("\n",
+                dataFolder.toAbsolutePath().normalize().toString(),
+                config.getString("product.data.format"),
+                config.getString("review.data.format"),
+                config.getString("reviews.data.file"),
+                config.getString("segment.data.file"),
+                config.getString("segment.index.file"));
+    }
+
+    /*
+    Rejected data rows are always counted and logged at a limited rate, and
+    the quarantine load mode also keeps them in the quarantine.file
+     */
+    private void openQuarantine() {
+        quarantine = new Quarantine();
+        if (config.getString("data.load.mode").equals("quarantine")) {
+            try {
+                quarantine = new Quarantine(
+                        Path.of(config.getString("quarantine.file")));
+            } catch (IOException ex) {
+                logger.log(Level.SEVERE, "Error opening quarantine file, "
+                        + "rejected rows are only counted " + ex.getMessage(),
+                        ex);
+            }
+        }
+    }
+
+    /*
+    Maps a segment file and reads the record of each product in its offset
+    index, skipping products already loaded from a newer segment
+     */
+    private List<String> loadSegment(int number, Set<Integer> loaded,
+            DataImage.Unit unit) {
+        Path indexFile = dataFolder.resolve(SegmentIndex.fileFormat(
+                config.getString("segment.index.file")).format(
+                new Object[]{number}));
+        Path segmentFile = dataFolder.resolve(SegmentIndex.fileFormat(
+                config.getString("segment.data.file")).format(
+                new Object[]{number}));
+        try (FileChannel channel = FileChannel.open(segmentFile,
+                StandardOpenOption.READ)) {
+            SegmentIndex index = SegmentIndex.read(indexFile);
+            if (channel.size() < index.getSegmentLength()) {
+                throw new IOException("Segment " + segmentFile
+                        + " is shorter than its index");
+            }
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    index.getSegmentLength());
+            long line = 1;
+            for (int i = 0; i < index.size(); i++) {
+                ByteBuffer record = data.duplicate();
+                record.limit((int) index.getOffset(i) + index.getLength(i));
+                record.position((int) index.getOffset(i));
+                long recordLine = line;
+                line += countLines(record);
+                if (loaded.contains(index.getId(i))) {
+                    unit.addSkipped(index.getId(i));
+                    continue;
+                }
+                Iterator<String> lines = StandardCharsets.UTF_8
+                        .decode(record).toString().lines().iterator();
+                if (!lines.hasNext()) {
+                    quarantine.reject(segmentFile, recordLine,
+                            "empty record", "");
+                    continue;
+                }
+                Product product = parseProduct(lines.next(), segmentFile,
+                        recordLine);
+                if (product != null) {
+                    loaded.add(product.getId());
+                    unit.addProduct(product);
+                    products.put(product, parseReviews(product, lines,
+                            segmentFile, recordLine + 1));
+                }
+            }
+        } catch (IOException ex) {
+            unit.setCacheable(false);
+            logger.log(Level.SEVERE, "Error loading segment " + segmentFile
+                    + " " + ex.getMessage(), ex);
+        }
+        return List.of(indexFile.getFileName().toString(),
+                segmentFile.getFileName().toString());
+    }
+
+    private static int countLines(ByteBuffer record) {
+        int lines = 0;
+        for (int i = record.position(); i < record.limit(); i++) {
+            if (record.get(i) == '\n') {
+                lines++;
+            }
         }
+        return lines;
     }
 
-    private Review parseReview(String text) {
-        Review review = null;
+    private RatedReviews parseReviews(Product product, Iterator<String> lines,
+            Path file, long line) {
+        if (reviewStore != null && reviewStore.isRestored()) {
+            return reviewStore.reviews(product.getId());
+        }
+        RatedReviews reviews = newReviews(product.getId());
+        while (lines.hasNext()) {
+            Review review = parseReview(lines.next(), file, line++);
+            if (review != null) {
+                reviews.add(review);
+            }
+        }
+        return reviews;
+    }
+
+    /*
+    Rows are checked before they are converted, so a malformed row costs
+    about as much as a valid one instead of throwing an exception, and is
+    handed to the quarantine with its file and line number
+     */
+    private Review parseReview(String text, Path file, long line) {
+        Object[] values = reviewFormat.parse(text, new ParsePosition(0));
+        if (values == null) {
+            quarantine.reject(file, line, "malformed review", text);
+            return null;
+        }
+        /*
+        Digits that overflow an int pass the check, so they are rejected when
+        they are converted
+         */
+        Integer stars = null;
         try {
-            Object[] values = reviewFormat.parse(text);
-            review = new Review(Rateable.convert(
-                    Integer.parseInt((String) values[0])), (String) values[1]);
-        } catch (ParseException | NumberFormatException ex) {
-            logger.log(Level.WARNING, "Error parsing review " + text + " "
-                    + ex.getMessage());
+            if (isInteger((String) values[0])) {
+                stars = Integer.parseInt((String) values[0]);
+            }
+        } catch (NumberFormatException ex) {
+            stars = null;
+        }
+        if (stars == null) {
+            quarantine.reject(file, line, "invalid rating", text);
+            return null;
         }
-        return review;
+        return new Review(Rateable.convert(stars), (String) values[1]);
     }
 
-    private Product parseProduct(String text) {
+    private Product parseProduct(String text, Path file, long line) {
+        Object[] values = productFormat.parse(text, new ParsePosition(0));
+        String reason = null;
+        if (values == null) {
+            reason = "malformed product";
+        } else if (!values[0].equals("D") && !values[0].equals("F")) {
+            reason = "unknown product type";
+        } else if (!isInteger((String) values[1])) {
+            reason = "invalid id";
+        } else if (!isDecimal((String) values[3])) {
+            reason = "invalid price";
+        } else if (!isInteger((String) values[4])) {
+            reason = "invalid rating";
+        } else if (values[0].equals("F") && !isDate((String) values[5])) {
+            reason = "invalid best before date";
+        }
+        if (reason != null) {
+            quarantine.reject(file, line, reason, text);
+            return null;
+        }
         Product product = null;
         try {
-            Object[] values = productFormat.parse(text);
             int id = Integer.parseInt((String) values[1]);
             String name = (String) values[2];
             BigDecimal price = BigDecimal.valueOf(Double
@@ -409,15 +1297,111 @@ public class ProductManager {
                     product = new Food(id, name, price, rating, bestBefore);
                     break;// Not neccesary to put break as this is the last case
             }
-        } catch (ParseException | NumberFormatException
-                | DateTimeParseException ex) {
-            logger.log(Level.WARNING, "Error parsing product " + text + " "
-                    + ex.getMessage());
+        } catch (NumberFormatException | DateTimeParseException ex) {
+            // Out of range numbers and dates such as 2021-02-30
+            quarantine.reject(file, line, "value out of range", text);
         }
         return product;
     }
 
+    /*
+    Accepts the signs that Integer.parseInt accepts
+     */
+    private static boolean isInteger(String text) {
+        int start = (text.startsWith("-") || text.startsWith("+")) ? 1 : 0;
+        if (text.length() == start) {
+            return false;
+        }
+        for (int i = start; i < text.length(); i++) {
+            if (!Character.isDigit(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+    Plain decimals, the usual case, are accepted by a scan. Any other text is
+    left to Double.parseDouble, so prices such as .5, 1e1 or " 2.5" load as
+    they always did.
+     */
+    private static boolean isDecimal(String text) {
+        int point = text.indexOf('.');
+        if ((point < 0) ? isInteger(text)
+                : isInteger(text.substring(0, point))
+                && (point == text.length() - 1
+                || isInteger(text.substring(point + 1))
+                && Character.isDigit(text.charAt(point + 1)))) {
+            return true;
+        }
+        try {
+            Double.parseDouble(text);
+            return true;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    private static boolean isDate(String text) {
+        ParsePosition position = new ParsePosition(0);
+        return DateTimeFormatter.ISO_LOCAL_DATE
+                .parseUnresolved(text, position) != null
+                && position.getIndex() == text.length();
+    }
+
+    /**
+     * Counts the data rows rejected by the last load
+     *
+     * @return rejected row counts per reason, keyed by data file
+     */
+    public Map<Path, Map<String, Long>> getRejectedRows() {
+        return quarantine.getCounts();
+    }
+
+    /**
+     * Exports every product, with its current rating and discount, followed
+     * by its reviews. The export is streamed through a fixed size buffer, so
+     * it needs the same memory however large the catalogue is. Products are
+     * written in id order, and changes to products and reviews wait until the
+     * export completes.
+     *
+     * @param file the export file, replaced if it exists
+     * @param format the export format
+     * @param gzip whether to compress the file with gzip
+     * @throws IOException if the file cannot be written
+     */
+    public void exportData(Path file, ExportFormat format, boolean gzip)
+            throws IOException {
+        readLock.lock();
+        try (DataExporter exporter = new DataExporter(file, format, gzip,
+                new MessageFormat(config.getString("export.product.format")),
+                new MessageFormat(config.getString("review.data.format")))) {
+            List<Product> sorted = new ArrayList<>(products.keySet());
+            sorted.sort(Comparator.comparingInt(Product::getId));
+            for (Product product : sorted) {
+                exporter.write(product, products.get(product));
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
     public Map<String, String> getDiscounts() {
+        return getDiscounts(formatter);
+    }
+
+    /**
+     * Calculates the total discount per product rating, formatted for the
+     * given locale
+     *
+     * @param languageTag language tag of the locale to format in
+     * @return formatted total discounts keyed by rating stars
+     */
+    public Map<String, String> getDiscounts(String languageTag) {
+        return getDiscounts(resolveFormatter(languageTag));
+    }
+
+    private Map<String, String> getDiscounts(ResourceFormatter formatter) {
         /*
         Use keySet method to obtain a Set of Product objects from the 
         products Map
@@ -437,17 +1421,23 @@ public class ProductManager {
         Use Collectors.summingDouble method to perform discount calculation, 
         extracting each product discount as a Double value.
          */
-        return products.keySet()
-                .stream()
-                .collect(
-                        Collectors.groupingBy(
-                                product -> product.getRating().getStars(),
-                                Collectors.collectingAndThen(
-                                        Collectors.summingDouble(
-                                                product -> product.getDiscount()
-                                                        .doubleValue()),
-                                        discount -> formatter.moneyFormat
-                                                .format(discount))));
+        readLock.lock();
+        try {
+            return products.keySet()
+                    .stream()
+                    .collect(
+                            Collectors.groupingBy(
+                                    product -> product.getRating().getStars(),
+                                    Collectors.collectingAndThen(
+                                            Collectors.summingDouble(
+                                                    product -> product
+                                                            .getDiscount()
+                                                            .doubleValue()),
+                                            discount -> formatter
+                                                    .formatMoney(discount))));
+        } finally {
+            readLock.unlock();
+        }
         /*
         Using streams to implement such a calculation, formatting and data
         regrouping logic may improve performance by merging a number of data
@@ -475,7 +1465,7 @@ public class ProductManager {
 
         private String formatProduct(Product product) {
             return MessageFormat.format(resources.getString("product"),
-                    product.getName(), moneyFormat.format(product.getPrice()),
+                    product.getName(), formatMoney(product.getPrice()),
                     product.getRating().getStars(),
                     dateFormat.format(product.getBestBefore()));
         }
@@ -485,6 +1475,38 @@ public class ProductManager {
                     review.getRating().getStars(), review.getComments());
         }
 
+        /*
+        Lists the number of reviews for every rating that has been given,
+        starting with the highest rating
+         */
+        private String formatDistribution(RatingHistogram histogram) {
+            StringBuilder entries = new StringBuilder();
+            for (int i = Rating.values().length - 1; i >= 0; i--) {
+                Rating rating = Rating.values()[i];
+                int count = histogram.getCount(rating);
+                if (count > 0) {
+                    if (entries.length() > 0) {
+                        entries.append(", ");
+                    }
+                    entries.append(MessageFormat.format(
+                            resources.getString("distribution.entry"),
+                            rating.getStars(), count));
+                }
+            }
+            return MessageFormat.format(resources.getString("distribution"),
+                    entries);
+        }
+
+        /*
+        NumberFormat is not thread safe and formatters are shared by all
+        threads, so access to moneyFormat is synchronized
+         */
+        private String formatMoney(Object amount) {
+            synchronized (moneyFormat) {
+                return moneyFormat.format(amount);
+            }
+        }
+
         private String getText(String key) {
             return resources.getString(key);
         }
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2021 pc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@code Quarantine} collects the data rows rejected while loading products
+ * and reviews.
+ * <br>
+ * Rejected rows are counted per file and reason and, when a quarantine file
+ * is given, appended to it as tab separated file, line number, reason and
+ * row text. Logging is rate limited to one message every few seconds, which
+ * reports how many rows were rejected since the previous message, and a
+ * summary per reason is logged when loading completes.
+ *
+ * @author pc
+ */
+class Quarantine implements Closeable {
+
+    private static final long LOG_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+    private static final Logger logger
+            = Logger.getLogger(Quarantine.class.getName());
+    private final Map<Path, Map<String, Long>> counts = new LinkedHashMap<>();
+    private final Path file;
+    private BufferedWriter out;
+    private long rejected;
+    private long unlogged;
+    private long lastLog = System.nanoTime() - LOG_INTERVAL;
+
+    /**
+     * Creates a quarantine that only counts and logs rejected rows
+     */
+    Quarantine() {
+        file = null;
+    }
+
+    /**
+     * Creates a quarantine that also writes rejected rows to a file
+     *
+     * @param file the quarantine file, replaced if it exists
+     * @throws IOException if the file cannot be created
+     */
+    Quarantine(Path file) throws IOException {
+        this.file = file;
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        out = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Records a rejected row
+     *
+     * @param source the data file
+     * @param line line number in the data file, or 0 for the whole file
+     * @param reason why the row was rejected
+     * @param text the row
+     */
+    void reject(Path source, long line, String reason, String text) {
+        counts.computeIfAbsent(source, s -> new TreeMap<>())
+                .merge(reason, 1L, Long::sum);
+        rejected++;
+        if (out != null) {
+            try {
+                out.write(source.toString());
+                out.write('\t');
+                out.write(Long.toString(line));
+                out.write('\t');
+                out.write(reason);
+                out.write('\t');
+                out.write(text);
+                out.newLine();
+            } catch (IOException ex) {
+                logger.log(Level.SEVERE, "Error writing quarantine file, "
+                        + "rejected rows are only counted from now on", ex);
+                closeQuietly();
+            }
+        }
+        long now = System.nanoTime();
+        if (now - lastLog < LOG_INTERVAL) {
+            unlogged++;
+        } else if (logger.isLoggable(Level.WARNING)) {
+            logger.log(Level.WARNING, "Rejected {0} line {1}: {2}, {3} more "
+                    + "rows rejected since the last message",
+                    new Object[]{source, String.valueOf(line), reason,
+                        String.valueOf(unlogged)});
+            lastLog = now;
+            unlogged = 0;
+        }
+    }
+
+    /**
+     * Counts rejected rows per file and reason
+     *
+     * @return an unmodifiable map from data file to counts per reason
+     */
+    Map<Path, Map<String, Long>> getCounts() {
+        Map<Path, Map<String, Long>> copy = new LinkedHashMap<>();
+        counts.forEach((source, reasons) -> copy.put(source,
+                Collections.unmodifiableMap(new TreeMap<>(reasons))));
+        return Collections.unmodifiableMap(copy);
+    }
+
+    long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Closes the quarantine file and logs the number of rejected rows per
+     * reason
+     */
+    @Override
+    public void close() {
+        closeQuietly();
+        if (rejected == 0) {
+            return;
+        }
+        Map<String, Long> reasons = new TreeMap<>();
+        counts.values().forEach(perFile -> perFile.forEach((reason, count)
+                -> reasons.merge(reason, count, Long::sum)));
+        logger.log(Level.WARNING, "Rejected {0} rows in {1} files {2}{3}",
+                new Object[]{String.valueOf(rejected),
+                    String.valueOf(counts.size()), reasons,
+                    (file == null) ? "" : ", see " + file});
+    }
+
+    private void closeQuietly() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                logger.log(Level.SEVERE, "Error closing quarantine file", ex);
+            }
+            out = null;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2021 pc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * {@code RatedReviews} is the list of reviews of a product, kept in one bucket
+ * per {@link Rating} value.
+ * <br>
+ * Reviews are appended to the bucket of their rating, so iterating over the
+ * list yields reviews from the highest to the lowest rating and in arrival
+ * order within each rating, which is the order defined by
+ * {@link Review#compareTo(Review) Review.compareTo}. A sorted report is
+ * therefore a linear walk and top or worst reviews only touch the entries
+ * that are returned.
+ *
+ * @author pc
+ */
+class RatedReviews extends AbstractList<Review> implements Serializable {
+
+    private static final Rating[] RATINGS = Rating.values();
+    private final List<List<Review>> buckets = new ArrayList<>(RATINGS.length);
+    private int size;
+
+    RatedReviews() {
+        this(rating -> new ArrayList<>());
+    }
+
+    /**
+     * Creates a list of reviews that keeps the reviews of each rating in the
+     * bucket provided by the given function, which may already contain
+     * reviews
+     *
+     * @param bucketFactory provides the bucket for each rating
+     */
+    RatedReviews(Function<Rating, List<Review>> bucketFactory) {
+        for (Rating rating : RATINGS) {
+            List<Review> bucket = bucketFactory.apply(rating);
+            buckets.add(bucket);
+            size += bucket.size();
+        }
+    }
+
+    @Override
+    public boolean add(Review review) {
+        buckets.get(review.getRating().ordinal()).add(review);
+        size++;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public Review get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index
+                    + ", Size: " + size);
+        }
+        for (int i = RATINGS.length - 1; i >= 0; i--) {
+            List<Review> bucket = buckets.get(i);
+            if (index < bucket.size()) {
+                return bucket.get(index);
+            }
+            index -= bucket.size();
+        }
+        throw new IllegalStateException("Bucket sizes do not add up to "
+                + size);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /*
+    Iterates over the buckets, rather than looking up every index, as
+    buckets may not support efficient random access
+     */
+    @Override
+    public Iterator<Review> iterator() {
+        return new Iterator<>() {
+            private int bucket = RATINGS.length - 1;
+            private Iterator<Review> reviews = buckets.get(bucket).iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!reviews.hasNext() && bucket > 0) {
+                    reviews = buckets.get(--bucket).iterator();
+                }
+                return reviews.hasNext();
+            }
+
+            @Override
+            public Review next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return reviews.next();
+            }
+        };
+    }
+
+    /**
+     * Get the reviews with the given rating, in arrival order
+     *
+     * @param rating the rating
+     * @return an unmodifiable view of the reviews with this rating
+     */
+    List<Review> getReviews(Rating rating) {
+        return Collections.unmodifiableList(buckets.get(rating.ordinal()));
+    }
+
+    /**
+     * Get up to {@code n} reviews with the highest ratings
+     *
+     * @param n the maximum number of reviews to return
+     * @return the best reviews, highest rating first
+     */
+    List<Review> top(int n) {
+        List<Review> result = new ArrayList<>(Math.min(n, size));
+        for (int i = RATINGS.length - 1; i >= 0 && result.size() < n; i--) {
+            collect(buckets.get(i), result, n);
+        }
+        return result;
+    }
+
+    /**
+     * Get up to {@code n} reviews with the lowest ratings
+     *
+     * @param n the maximum number of reviews to return
+     * @return the worst reviews, lowest rating first
+     */
+    List<Review> worst(int n) {
+        List<Review> result = new ArrayList<>(Math.min(n, size));
+        for (int i = 0; i < RATINGS.length && result.size() < n; i++) {
+            collect(buckets.get(i), result, n);
+        }
+        return result;
+    }
+
+    private static void collect(List<Review> bucket, List<Review> result,
+            int n) {
+        int count = Math.min(bucket.size(), n - result.size());
+        result.addAll(bucket.subList(0, count));
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2021 pc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * {@code RatingHistogram} keeps one counter per {@link Rating} value for the
+ * reviews of a product.
+ * <br>
+ * Counts, the average, median and percentile ratings and the distribution of
+ * ratings are all calculated from the six counters, so they take constant time
+ * regardless of the number of reviews.
+ *
+ * @author pc
+ */
+public class RatingHistogram implements Serializable {
+
+    private static final Rating[] RATINGS = Rating.values();
+    private final int[] counts = new int[RATINGS.length];
+    private int total;
+    private long sum;
+
+    RatingHistogram() {
+    }
+
+    RatingHistogram(RatingHistogram other) {
+        System.arraycopy(other.counts, 0, counts, 0, counts.length);
+        total = other.total;
+        sum = other.sum;
+    }
+
+    void add(Rating rating) {
+        counts[rating.ordinal()]++;
+        total++;
+        sum += rating.ordinal();
+    }
+
+    void add(Rating rating, int count) {
+        counts[rating.ordinal()] += count;
+        total += count;
+        sum += (long) rating.ordinal() * count;
+    }
+
+    /**
+     * Get the number of reviews with the given rating
+     *
+     * @param rating the rating to count
+     * @return the number of reviews
+     */
+    public int getCount(Rating rating) {
+        return counts[rating.ordinal()];
+    }
+
+    /**
+     * Get the total number of reviews
+     *
+     * @return the number of reviews
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * Calculates the average of all review ratings, rounded to the nearest
+     * {@link Rating}
+     *
+     * @return the average rating or {@link Rating#NOT_RATED NOT_RATED} if
+     * there are no reviews
+     */
+    public Rating getAverageRating() {
+        return (total == 0) ? Rateable.DEFAULT_RATING
+                : Rateable.convert((int) Math.round((double) sum / total));
+    }
+
+    /**
+     * Get the median review rating
+     *
+     * @return the median rating
+     */
+    public Rating getMedianRating() {
+        return getPercentileRating(50);
+    }
+
+    /**
+     * Get the lowest rating that is greater than or equal to the given
+     * percentage of review ratings
+     *
+     * @param percentile a value between 0 and 100
+     * @return the rating at the percentile or
+     * {@link Rating#NOT_RATED NOT_RATED} if there are no reviews
+     */
+    public Rating getPercentileRating(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException(
+                    "Percentile must be between 0 and 100: " + percentile);
+        }
+        if (total == 0) {
+            return Rateable.DEFAULT_RATING;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (Rating rating : RATINGS) {
+            seen += counts[rating.ordinal()];
+            if (seen >= rank) {
+                return rating;
+            }
+        }
+        return RATINGS[RATINGS.length - 1];
+    }
+
+    /**
+     * Get the share of reviews with the given rating
+     *
+     * @param rating the rating
+     * @return a value between 0 and 1
+     */
+    public double getShare(Rating rating) {
+        return (total == 0) ? 0 : (double) counts[rating.ordinal()] / total;
+    }
+
+    /**
+     * Get the number of reviews per rating
+     *
+     * @return an unmodifiable map containing a count for every rating
+     */
+    public Map<Rating, Integer> getDistribution() {
+        Map<Rating, Integer> distribution = new EnumMap<>(Rating.class);
+        for (Rating rating : RATINGS) {
+            distribution.put(rating, counts[rating.ordinal()]);
+        }
+        return Collections.unmodifiableMap(distribution);
+    }
+
+    @Override
+    public String toString() {
+        return "RatingHistogram{" + "distribution=" + getDistribution()
+                + ", total=" + total + '}';
+    }
+}
@@ -29,7 +29,8 @@ public class Review implements Comparable<Review>, Serializable{
 
     @Override
     public String toString() {
-        return "Review{" + "rating=" + rating + ", comments=" + comments + '}';
+        return "Review{" + "rating=" + getRating() + ", comments="
+                + getComments() + '}';
     }
 
     public Review(Rating rating, String comments) {
@@ -47,6 +48,6 @@ public class Review implements Comparable<Review>, Serializable{
 
     @Override
     public int compareTo(Review other) {
-        return other.rating.ordinal() - this.rating.ordinal();
+        return other.getRating().ordinal() - this.getRating().ordinal();
     }
 }
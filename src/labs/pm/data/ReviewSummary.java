@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2021 pc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@code ReviewSummary} is the outcome of a bulk review operation: the
+ * products whose rating was recalculated and the ids that did not match any
+ * product
+ *
+ * @author pc
+ */
+public class ReviewSummary {
+
+    private List<Product> reviewedProducts;
+    private Set<Integer> unknownIds;
+    private int reviewCount;
+
+    ReviewSummary(List<Product> reviewedProducts, Set<Integer> unknownIds,
+            int reviewCount) {
+        this.reviewedProducts = Collections.unmodifiableList(reviewedProducts);
+        this.unknownIds = Collections.unmodifiableSet(unknownIds);
+        this.reviewCount = reviewCount;
+    }
+
+    /**
+     * Get the products that received at least one review, with their updated
+     * rating
+     *
+     * @return the list of reviewed products
+     */
+    public List<Product> getReviewedProducts() {
+        return reviewedProducts;
+    }
+
+    /**
+     * Get the product ids that were not found, so their reviews were skipped
+     *
+     * @return the set of unknown product ids
+     */
+    public Set<Integer> getUnknownIds() {
+        return unknownIds;
+    }
+
+    /**
+     * Get the number of reviews that were applied
+     *
+     * @return the count of applied reviews
+     */
+    public int getReviewCount() {
+        return reviewCount;
+    }
+
+    @Override
+    public String toString() {
+        return "ReviewSummary{" + "reviewedProducts=" + reviewedProducts.size()
+                + ", unknownIds=" + unknownIds + ", reviewCount="
+                + reviewCount + '}';
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2021 pc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * {@code SearchIndex} is an inverted index from the terms of product names
+ * and review comments to the products that contain them.
+ * <br>
+ * Terms are lower case runs of letters and digits. A query is a list of
+ * terms, where a term ending with {@code *} matches every term with that
+ * prefix. Products are ranked by the sum of the weights of matching terms.
+ * A term in the product name weighs {@link #NAME_WEIGHT} times as much as a
+ * term in a review, a term in reviews weighs more the more reviews mention
+ * it, growing logarithmically, and rarer terms weigh more than common ones.
+ * <br>
+ * The index is not thread safe, {@link ProductManager} guards it with its
+ * read/write lock.
+ *
+ * @author pc
+ */
+class SearchIndex {
+
+    static final int NAME_WEIGHT = 3;
+    private final NavigableMap<String, Map<Integer, Integer>> names
+            = new TreeMap<>();
+    private final NavigableMap<String, Map<Integer, Integer>> comments
+            = new TreeMap<>();
+    private final Map<Integer, Product> products = new HashMap<>();
+
+    /**
+     * Indexes the name of a new product, or records the latest version of a
+     * product that is already indexed
+     *
+     * @param product the product
+     */
+    void addProduct(Product product) {
+        if (products.put(product.getId(), product) == null) {
+            for (String term : terms(product.getName())) {
+                names.computeIfAbsent(term, t -> new HashMap<>())
+                        .merge(product.getId(), 1, Integer::sum);
+            }
+        }
+    }
+
+    /**
+     * Indexes the comments of a review of a product, counting each term once
+     * per review
+     *
+     * @param productId product id
+     * @param text review comments
+     */
+    void addReview(int productId, String text) {
+        for (String term : terms(text)) {
+            comments.computeIfAbsent(term, t -> new HashMap<>())
+                    .merge(productId, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Indexes the comment terms of a product counted beforehand, such as
+     * terms kept in a data image
+     *
+     * @param productId product id
+     * @param terms distinct terms of the product review comments
+     * @param counts the number of reviews that contain each term
+     */
+    void addCommentTerms(int productId, String[] terms, int[] counts) {
+        for (int i = 0; i < terms.length; i++) {
+            comments.computeIfAbsent(terms[i], t -> new HashMap<>())
+                    .merge(productId, counts[i], Integer::sum);
+        }
+    }
+
+    /**
+     * Get the comment terms of every product, with the number of reviews
+     * that contain each term, as counted by {@link #addReview addReview}
+     *
+     * @return terms and review counts by product id
+     */
+    Map<Integer, Map<String, Integer>> getCommentTerms() {
+        Map<Integer, Map<String, Integer>> terms = new HashMap<>();
+        comments.forEach((term, postings) -> postings.forEach((id, count)
+                -> terms.computeIfAbsent(id, i -> new HashMap<>())
+                        .put(term, count)));
+        return terms;
+    }
+
+    void clear() {
+        names.clear();
+        comments.clear();
+        products.clear();
+    }
+
+    /**
+     * Finds products whose name or review comments match any query term
+     *
+     * @param query search terms
+     * @param limit the maximum number of products to return
+     * @return matching products, most relevant first
+     */
+    List<Product> searchProducts(String query, int limit) {
+        Map<Integer, Double> scores = new HashMap<>();
+        for (String term : queryTerms(query)) {
+            score(names, term, true, scores);
+            score(comments, term, false, scores);
+        }
+        return ranked(scores, limit);
+    }
+
+    /**
+     * Finds products with review comments that match all query terms, most
+     * relevant first
+     *
+     * @param query search terms
+     * @return an iterator over matching products, most relevant first
+     */
+    Iterator<Product> searchCommentedProducts(String query) {
+        List<String> terms = queryTerms(query);
+        if (terms.isEmpty()) {
+            return Collections.emptyIterator();
+        }
+        Map<Integer, Double> scores = new HashMap<>();
+        score(comments, terms.get(0), false, scores);
+        for (String term : terms.subList(1, terms.size())) {
+            Map<Integer, Double> termScores = new HashMap<>();
+            score(comments, term, false, termScores);
+            scores.keySet().retainAll(termScores.keySet());
+            scores.replaceAll((id, score) -> score + termScores.get(id));
+        }
+        return ranked(scores);
+    }
+
+    /**
+     * Tells whether a text contains all query terms
+     *
+     * @param query search terms
+     * @param text the text to check
+     * @return true if every query term, or a term with a query prefix, occurs
+     * in the text
+     */
+    static boolean matches(String query, String text) {
+        List<String> textTerms = terms(text);
+        for (String term : queryTerms(query)) {
+            boolean prefix = term.endsWith("*");
+            String stem = prefix ? term.substring(0, term.length() - 1) : term;
+            if (textTerms.stream().noneMatch(t
+                    -> prefix ? t.startsWith(stem) : t.equals(stem))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+    Adds the weight of a query term to the score of every product that
+    contains it, expanding prefix terms to all matching index terms
+     */
+    private void score(NavigableMap<String, Map<Integer, Integer>> index,
+            String term, boolean name, Map<Integer, Double> scores) {
+        Collection<Map<Integer, Integer>> postings;
+        if (term.endsWith("*")) {
+            String prefix = term.substring(0, term.length() - 1);
+            postings = index.subMap(prefix, true,
+                    prefix + Character.MAX_VALUE, false).values();
+        } else {
+            Map<Integer, Integer> exact = index.get(term);
+            postings = (exact == null) ? List.of() : List.of(exact);
+        }
+        for (Map<Integer, Integer> posting : postings) {
+            double idf = Math.log(1 + (double) products.size()
+                    / posting.size());
+            posting.forEach((id, count) -> scores.merge(id,
+                    idf * (name ? NAME_WEIGHT : Math.log(1 + count)),
+                    Double::sum));
+        }
+    }
+
+    private List<Product> ranked(Map<Integer, Double> scores, int limit) {
+        List<Product> result = new ArrayList<>();
+        Iterator<Product> ranked = ranked(scores);
+        while (result.size() < limit && ranked.hasNext()) {
+            result.add(ranked.next());
+        }
+        return result;
+    }
+
+    /*
+    Orders matches lazily with a heap, which is built in linear time, so
+    taking the first few results of a query that matches many products does
+    not sort all of them
+     */
+    private Iterator<Product> ranked(Map<Integer, Double> scores) {
+        List<Hit> hits = new ArrayList<>(scores.size());
+        scores.forEach((id, score) -> hits.add(new Hit(id, score)));
+        PriorityQueue<Hit> heap = new PriorityQueue<>(hits);
+        return new Iterator<>() {
+            private Product next = advance();
+
+            private Product advance() {
+                Product product = null;
+                while (product == null && !heap.isEmpty()) {
+                    product = products.get(heap.poll().id);
+                }
+                return product;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Product next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Product product = next;
+                next = advance();
+                return product;
+            }
+        };
+    }
+
+    /*
+    Splits an indexed text into distinct lower case terms, a * in the text
+    only separates terms
+     */
+    static List<String> terms(String text) {
+        return terms(text, false);
+    }
+
+    /*
+    Splits a query into distinct lower case terms. A trailing * is kept, so
+    query terms can ask for a prefix match.
+     */
+    static List<String> queryTerms(String query) {
+        return terms(query, true);
+    }
+
+    private static List<String> terms(String text, boolean query) {
+        Set<String> terms = new HashSet<>();
+        List<String> ordered = new ArrayList<>();
+        if (text == null) {
+            return ordered;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            char c = (i < text.length()) ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                int end = (query && c == '*') ? i + 1 : i;
+                String term = text.substring(start, end)
+                        .toLowerCase(Locale.ROOT);
+                if (terms.add(term)) {
+                    ordered.add(term);
+                }
+                start = -1;
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * {@code Hit} is the score of a product for a query, ordered from the
+     * highest score and then by product id
+     */
+    private static class Hit implements Comparable<Hit> {
+
+        private final int id;
+        private final double score;
+
+        private Hit(int id, double score) {
+            this.id = id;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(Hit other) {
+            int order = Double.compare(other.score, score);
+            return (order != 0) ? order : Integer.compare(id, other.id);
+        }
+    }
+}
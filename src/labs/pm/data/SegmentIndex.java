@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2021 pc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.Format;
+import java.text.MessageFormat;
+import java.text.NumberFormat;
+import java.text.ParsePosition;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * {@code SegmentIndex} is the offset index of a segment data file. A segment
+ * holds the records of many products one after the other, each record being
+ * a product line followed by the review lines of that product, and the
+ * index tells where the record of each product starts and how long it is.
+ * <br>
+ * The index file starts with a magic number, a version, the number of
+ * entries and the length of the segment it describes, followed by an id,
+ * offset and length per record, all in big endian order. The index is
+ * written when its segment is complete, so a segment without an index is
+ * ignored.
+ *
+ * @author pc
+ */
+class SegmentIndex {
+
+    private static final int MAGIC = 0x50534958;
+    private static final int VERSION = 1;
+    private int size;
+    private int[] ids = new int[1024];
+    private long[] offsets = new long[1024];
+    private int[] lengths = new int[1024];
+    private long segmentLength;
+
+    void add(int productId, long offset, int length) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2);
+            lengths = Arrays.copyOf(lengths, size * 2);
+        }
+        ids[size] = productId;
+        offsets[size] = offset;
+        lengths[size] = length;
+        size++;
+        segmentLength = Math.max(segmentLength, offset + length);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getId(int entry) {
+        return ids[entry];
+    }
+
+    long getOffset(int entry) {
+        return offsets[entry];
+    }
+
+    int getLength(int entry) {
+        return lengths[entry];
+    }
+
+    long getSegmentLength() {
+        return segmentLength;
+    }
+
+    void write(Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            out.writeLong(segmentLength);
+            for (int i = 0; i < size; i++) {
+                out.writeInt(ids[i]);
+                out.writeLong(offsets[i]);
+                out.writeInt(lengths[i]);
+            }
+        }
+    }
+
+    static SegmentIndex read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a segment index " + file);
+            }
+            int count = in.readInt();
+            long length = in.readLong();
+            SegmentIndex index = new SegmentIndex();
+            for (int i = 0; i < count; i++) {
+                int productId = in.readInt();
+                long offset = in.readLong();
+                int recordLength = in.readInt();
+                if (offset < 0 || recordLength <= 0) {
+                    throw new IOException("Corrupt segment index " + file);
+                }
+                index.add(productId, offset, recordLength);
+            }
+            if (index.segmentLength > length) {
+                throw new IOException("Corrupt segment index " + file);
+            }
+            index.segmentLength = length;
+            return index;
+        }
+    }
+
+    /*
+    Creates the format of segment file names such as segment{0,number,0000}.csv
+    independently of the default locale. Numbers are parsed as integers, or
+    the dot before the file extension would be read as a decimal point.
+     */
+    static MessageFormat fileFormat(String pattern) {
+        MessageFormat format = new MessageFormat(pattern, Locale.ROOT);
+        for (Format argument : format.getFormats()) {
+            if (argument instanceof NumberFormat) {
+                ((NumberFormat) argument).setParseIntegerOnly(true);
+            }
+        }
+        return format;
+    }
+
+    /*
+    Extracts the segment number from a file name that matches a segment file
+    pattern such as segment{0,number,0000}.idx, or returns -1 when the name
+    does not match
+     */
+    static int segmentNumber(MessageFormat pattern, String fileName) {
+        ParsePosition position = new ParsePosition(0);
+        Object[] values = pattern.parse(fileName, position);
+        return (values != null && position.getIndex() == fileName.length()
+                && values[0] instanceof Number)
+                ? ((Number) values[0]).intValue() : -1;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2021 pc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.stream.Stream;
+
+/**
+ * {@code SegmentWriter} packs product and review data lines into segment
+ * files, the consolidated data layout read by {@link ProductManager} next to
+ * the per product files.
+ * <br>
+ * Each product is appended as one record, its product line followed by its
+ * review lines. A new segment is started when the current one would grow
+ * past {@code segment.size} bytes. Segments are numbered after the ones
+ * already in the folder and are never rewritten. The offset index of a
+ * segment is written when the segment is complete, and a newer segment
+ * takes precedence over older ones and over per product files for the
+ * products it contains.
+ *
+ * @author pc
+ */
+public class SegmentWriter implements Closeable {
+
+    private final ResourceBundle config
+            = ResourceBundle.getBundle("labs.pm.data.config");
+    private final MessageFormat dataFile
+            = SegmentIndex.fileFormat(
+                    config.getString("segment.data.file"));
+    private final MessageFormat indexFile
+            = SegmentIndex.fileFormat(
+                    config.getString("segment.index.file"));
+    private final long segmentSize = Math.min(Integer.MAX_VALUE,
+            Long.parseLong(config.getString("segment.size")));
+    private final Path folder;
+    private final List<Path> segments = new ArrayList<>();
+    private int number;
+    private OutputStream out;
+    private SegmentIndex index;
+    private long offset;
+
+    /**
+     * Creates a writer that adds segments to a folder
+     *
+     * @param folder the data folder, created if it does not exist
+     * @throws IOException if the folder cannot be read or created
+     */
+    public SegmentWriter(Path folder) throws IOException {
+        this.folder = folder;
+        Files.createDirectories(folder);
+        try (Stream<Path> files = Files.list(folder)) {
+            number = files.map(file -> file.getFileName().toString())
+                    .mapToInt(name -> Math.max(
+                            SegmentIndex.segmentNumber(dataFile, name),
+                            SegmentIndex.segmentNumber(indexFile, name)))
+                    .filter(segment -> segment > 0)
+                    .max().orElse(0);
+        }
+    }
+
+    /**
+     * Appends the record of a product
+     *
+     * @param productId product id
+     * @param product product line in the {@code product.data.format} layout
+     * @param reviews review lines in the {@code review.data.format} layout
+     * @throws IOException if the segment cannot be written
+     */
+    public void write(int productId, String product, List<String> reviews)
+            throws IOException {
+        StringBuilder text = new StringBuilder(product).append('\n');
+        for (String review : reviews) {
+            text.append(review).append('\n');
+        }
+        byte[] record = text.toString().getBytes(StandardCharsets.UTF_8);
+        if (out != null && offset + record.length > segmentSize) {
+            finishSegment();
+        }
+        if (out == null) {
+            number++;
+            Path segment = folder.resolve(dataFile.format(
+                    new Object[]{number}));
+            out = new BufferedOutputStream(Files.newOutputStream(segment,
+                    StandardOpenOption.CREATE_NEW), 1 << 20);
+            index = new SegmentIndex();
+            offset = 0;
+            segments.add(segment);
+        }
+        out.write(record);
+        index.add(productId, offset, record.length);
+        offset += record.length;
+    }
+
+    /**
+     * Lists the segment files written so far
+     *
+     * @return segment files in the order they were written
+     */
+    public List<Path> getSegments() {
+        return List.copyOf(segments);
+    }
+
+    /*
+    The index is written under a temporary name and then renamed, so a
+    segment only becomes visible to the loader once it is complete
+     */
+    private void finishSegment() throws IOException {
+        out.close();
+        out = null;
+        Path file = folder.resolve(indexFile.format(new Object[]{number}));
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        index.write(temp);
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Completes the current segment
+     *
+     * @throws IOException if the segment or its index cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            finishSegment();
+        }
+    }
+}